@@ -0,0 +1,66 @@
+package Benchmarks;
+
+import KMeans.KMeans;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times a full KMeans.calculate (seeding, loops until stable and result
+ * image) for every mode, cluster count and input.
+ * Run it with "-prof gc" to get the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class KMeansBenchmark {
+    @Param({"iterative", "continuous", "parallel", "histogram", "accelerated", "pyramid"})
+    public String mode;
+
+    @Param({"4", "16", "64"})
+    public int clusters;
+
+    @Param({"kitten", "synthetic-512", "synthetic-2048"})
+    public String image;
+
+    private BufferedImage input;
+    private int modeFlag;
+    private KMeans kMeans;
+
+    @Setup
+    public void setUp () throws IOException {
+        input = SyntheticImages.load(image);
+        modeFlag = mode(mode);
+        kMeans = new KMeans();
+        kMeans.setVerbose(false);
+    }
+
+    @Benchmark
+    public BufferedImage calculate () {
+        return kMeans.calculate(input, clusters, modeFlag);
+    }
+
+    static int mode (String name) {
+        switch (name) {
+            case "iterative":
+                return KMeans.MODE_ITERATIVE;
+            case "continuous":
+                return KMeans.MODE_CONTINUOUS;
+            case "parallel":
+                return KMeans.MODE_PARALLEL;
+            case "histogram":
+                return KMeans.MODE_HISTOGRAM;
+            case "accelerated":
+                return KMeans.MODE_ACCELERATED;
+            case "pyramid":
+                return KMeans.MODE_PYRAMID;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + name);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package Benchmarks;
+
+import CORE.SimpleRegionGrowing;
+import org.openjdk.jmh.annotations.*;
+
+import javax.media.jai.PlanarImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the three parts of a SimpleRegionGrowing job: the pre-processing of
+ * a color image (done by the constructor), the labeling of a black-and-white
+ * mask and the creation of the output image.
+ * Run it with "-prof gc" to get the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class RegionGrowingBenchmark {
+    @Param({"kitten", "synthetic-1024"})
+    public String image;
+
+    @Param({"512", "2048"})
+    public int maskSize;
+
+    private PlanarImage color;
+    private PlanarImage mask;
+    private SimpleRegionGrowing labeled;
+
+    @Setup
+    public void setUp () throws IOException {
+        color = PlanarImage.wrapRenderedImage(SyntheticImages.load(image));
+        mask = PlanarImage.wrapRenderedImage(SyntheticImages.mask(maskSize, maskSize, maskSize / 4));
+        labeled = new SimpleRegionGrowing(mask, false);
+        labeled.run();
+    }
+
+    @Benchmark
+    public SimpleRegionGrowing preprocess () {
+        return new SimpleRegionGrowing(color, true);
+    }
+
+    @Benchmark
+    public SimpleRegionGrowing run (FreshTask fresh) {
+        fresh.task.run();
+        return fresh.task;
+    }
+
+    @Benchmark
+    public PlanarImage getOutput () {
+        return labeled.getOutput();
+    }
+
+    /**
+     * The labels are filled in by run(), so every call needs a new (untimed) task.
+     */
+    @State(Scope.Thread)
+    public static class FreshTask {
+        SimpleRegionGrowing task;
+
+        @Setup(Level.Invocation)
+        public void setUp (RegionGrowingBenchmark benchmark) {
+            task = new SimpleRegionGrowing(benchmark.mask, false);
+        }
+    }
+}
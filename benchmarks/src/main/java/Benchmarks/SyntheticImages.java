@@ -0,0 +1,91 @@
+package Benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * The inputs of the benchmarks: the bundled kitten photo, and generated
+ * images that are always the same for a given size, so results can be
+ * compared from one run (and one commit) to the next.
+ */
+final class SyntheticImages {
+    private SyntheticImages () {
+    }
+
+    /**
+     * Returns the named input: "kitten", or "synthetic-N" for a generated NxN photo-like image.
+     */
+    static BufferedImage load (String name) throws IOException {
+        if (name.equals("kitten")) {
+            try (InputStream in = SyntheticImages.class.getResourceAsStream("/kitten.jpg")) {
+                if (in == null) throw new IOException("kitten.jpg is not on the classpath");
+                return ImageIO.read(in);
+            }
+        }
+        if (name.startsWith("synthetic-")) {
+            int size = Integer.parseInt(name.substring("synthetic-".length()));
+            return photo(size, size);
+        }
+        throw new IllegalArgumentException("Unknown image " + name);
+    }
+
+    /**
+     * Smooth color gradients with a few flat blobs and some noise, a rough
+     * stand-in for a photo (many colors, a few dominant ones).
+     */
+    static BufferedImage photo (int width, int height) {
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        int blobs = 12;
+        int[] bx = new int[blobs], by = new int[blobs], br = new int[blobs], bc = new int[blobs];
+        for (int i = 0; i < blobs; i++) {
+            bx[i] = random.nextInt(width);
+            by[i] = random.nextInt(height);
+            br[i] = 1 + random.nextInt(Math.max(1, Math.min(width, height) / 4));
+            bc[i] = random.nextInt(0x1000000);
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * x / width, g = 255 * y / height, b = 255 * (x + y) / (width + height);
+                int rgb = r << 16 | g << 8 | b;
+                for (int i = 0; i < blobs; i++) {
+                    long dx = x - bx[i], dy = y - by[i];
+                    if (dx * dx + dy * dy < (long) br[i] * br[i]) rgb = bc[i];
+                }
+                image.setRGB(x, y, noise(rgb, random));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * A black-and-white image of random discs, for the region growing.
+     */
+    static BufferedImage mask (int width, int height, int discs) {
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        for (int i = 0; i < discs; i++) {
+            int cx = random.nextInt(width), cy = random.nextInt(height);
+            int radius = 1 + random.nextInt(Math.max(1, Math.min(width, height) / 16));
+            for (int y = Math.max(0, cy - radius); y < Math.min(height, cy + radius); y++)
+                for (int x = Math.max(0, cx - radius); x < Math.min(width, cx + radius); x++)
+                    if ((x - cx) * (x - cx) + (y - cy) * (y - cy) < radius * radius)
+                        image.setRGB(x, y, 0xFFFFFFFF);
+        }
+        return image;
+    }
+
+    private static int noise (int rgb, Random random) {
+        int r = clamp((rgb >> 16 & 0xFF) + random.nextInt(9) - 4);
+        int g = clamp((rgb >> 8 & 0xFF) + random.nextInt(9) - 4);
+        int b = clamp((rgb & 0xFF) + random.nextInt(9) - 4);
+        return r << 16 | g << 8 | b;
+    }
+
+    private static int clamp (int v) {
+        return Math.max(0, Math.min(255, v));
+    }
+}
@@ -0,0 +1,58 @@
+package Benchmarks;
+
+import KMeans.TiledImageReader;
+import KMeans.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times reading every tile of a large image file, in row-major order as
+ * the mini-batch mode does. A non-tiled image should cost about one decode
+ * whatever the tile size, not one decode per tile.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+@State(Scope.Benchmark)
+public class TiledReadBenchmark {
+    @Param({"png", "jpeg"})
+    public String format;
+
+    @Param({"4096"})
+    public int size;
+
+    @Param({"256", "1024"})
+    public int tileSize;
+
+    private File file;
+
+    @Setup
+    public void setUp () throws IOException {
+        file = File.createTempFile("tiled-read", "." + format);
+        file.deleteOnExit();
+        if (!ImageIO.write(SyntheticImages.photo(size, size), format, file))
+            throw new IOException("No writer for " + format);
+    }
+
+    @TearDown
+    public void tearDown () {
+        file.delete();
+    }
+
+    @Benchmark
+    public long readAllTiles () throws IOException {
+        long sum = 0;
+        try (TiledImageReader tiles = Utils.openTiled(file.getPath(), tileSize, tileSize)) {
+            for (int tileY = 0; tileY < tiles.getNumYTiles(); tileY++)
+                for (int tileX = 0; tileX < tiles.getNumXTiles(); tileX++)
+                    sum += tiles.readTile(tileX, tileY)[0];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,238 @@
+package CORE;
+
+import java.awt.*;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Converts an image to black-and-white in two parallel sweeps over bands of
+ * rows. The first one reads the pixels, converts them to gray (indexed images
+ * through their colormap) and builds the histogram; the second one writes the
+ * pixels at or above the threshold straight into a {@link BinaryMask}.
+ * The gray levels are computed as JAI's bandcombine did, with the weights
+ * 0.114, 0.587 and 0.299 of the first three bands, and are the only copy of
+ * the image made (a byte per pixel).
+ */
+public final class Binarizer {
+    // The threshold which minimizes the fuzziness of the two classes (Huang and Wang)
+    public static final int FUZZINESS = 0x01;
+    // The threshold which maximizes the variance between the two classes (Otsu)
+    public static final int OTSU = 0x02;
+    // The rows of a band read by one task
+    private static final int BAND_HEIGHT = 64;
+    private static final float[] WEIGHTS = {0.114f, 0.587f, 0.299f};
+
+    private Binarizer () {
+    }
+
+    /**
+     * Binarizes the first band of the image, or its gray levels if it is indexed or has
+     * three bands or more.
+     *
+     * @param method FUZZINESS or OTSU.
+     * @return a mask of the pixels at or above the threshold.
+     */
+    public static BinaryMask binarize (RenderedImage image, int method) {
+        return binarize(image, method, new byte[image.getWidth() * image.getHeight()]);
+    }
+
+    /**
+     * Binarizes the image as binarize(image, method), keeping its gray levels.
+     *
+     * @param gray receives the gray levels (unsigned), row by row; it must hold the pixels.
+     */
+    static BinaryMask binarize (final RenderedImage image, int method, final byte[] gray) {
+        if (method != FUZZINESS && method != OTSU) throw new IllegalArgumentException("Unknown threshold " + method);
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bands = image.getSampleModel().getNumBands();
+        if (bands == 2) throw new IllegalArgumentException("Can't convert 2 bands to gray");
+        if (gray.length < width * height) throw new IllegalArgumentException("The gray array is too small");
+        final int[] colormap = image.getColorModel() instanceof IndexColorModel
+                ? grayColormap((IndexColorModel) image.getColorModel()) : null;
+
+        // 1 - gray levels and histogram
+        List<Callable<int[]>> reads = new ArrayList<>();
+        for (int from = 0; from < height; from += BAND_HEIGHT) {
+            final int bandFrom = from;
+            final int bandTo = Math.min(height, from + BAND_HEIGHT);
+            reads.add(new Callable<int[]>() {
+                @Override
+                public int[] call () {
+                    return read(image, colormap, bands, gray, bandFrom, bandTo);
+                }
+            });
+        }
+        int[] histogram = new int[256];
+        for (int[] bandHistogram : invokeAll(reads))
+            for (int i = 0; i < histogram.length; i++)
+                histogram[i] += bandHistogram[i];
+        final int threshold = method == OTSU ? maxVarianceThreshold(histogram) : minFuzzinessThreshold(histogram);
+
+        // 2 - the mask, a band of rows per task
+        final BinaryMask mask = new BinaryMask(width, height);
+        List<Callable<int[]>> writes = new ArrayList<>();
+        for (int from = 0; from < height; from += BAND_HEIGHT) {
+            final int bandFrom = from;
+            final int bandTo = Math.min(height, from + BAND_HEIGHT);
+            writes.add(new Callable<int[]>() {
+                @Override
+                public int[] call () {
+                    for (int y = bandFrom; y < bandTo; y++)
+                        for (int x = 0; x < width; x++)
+                            if ((gray[y * width + x] & 0xFF) >= threshold)
+                                mask.bits[y * mask.stride + (x >>> 6)] |= 1L << x;
+                    return null;
+                }
+            });
+        }
+        invokeAll(writes);
+        return mask;
+    }
+
+    /*
+     * Reads the rows [from, to) as gray levels into gray, and returns their histogram.
+     */
+    private static int[] read (RenderedImage image, int[] colormap, int bands, byte[] gray, int from, int to) {
+        int width = image.getWidth();
+        int[] histogram = new int[256];
+        Raster raster = image.getData(new Rectangle(image.getMinX(), image.getMinY() + from, width, to - from));
+        int[] row = new int[width * bands];
+        for (int y = from; y < to; y++) {
+            raster.getPixels(image.getMinX(), image.getMinY() + y, width, 1, row);
+            for (int x = 0; x < width; x++) {
+                int value;
+                if (colormap != null) value = colormap[row[x * bands] & 0xFF];
+                else if (bands == 1) value = row[x];
+                else value = luma(row[x * bands], row[x * bands + 1], row[x * bands + 2]);
+                // like the 256 bins of the JAI histogram, over [0, 256)
+                if (value >= 0 && value < 256) histogram[value]++;
+                gray[y * width + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return histogram;
+    }
+
+    // The gray level of each color of the map
+    private static int[] grayColormap (IndexColorModel colorModel) {
+        int[] gray = new int[256];
+        for (int i = 0; i < Math.min(256, colorModel.getMapSize()); i++)
+            gray[i] = luma(colorModel.getRed(i), colorModel.getGreen(i), colorModel.getBlue(i));
+        return gray;
+    }
+
+    // The weighted sum of the bands, in floats and rounded, as bandcombine does on bytes
+    private static int luma (int band0, int band1, int band2) {
+        float sum = WEIGHTS[0] * band0;
+        sum += WEIGHTS[1] * band1;
+        sum += WEIGHTS[2] * band2;
+        return sum > 255 ? 255 : (int) (sum + 0.5f);
+    }
+
+    /**
+     * Huang and Wang's threshold, as JAI's Histogram.getMinFuzzinessThreshold: for every
+     * level t from the lowest occupied level gmin (included) to the highest one gmax
+     * (excluded), the pixels up to t belong to the mean of the lower class and the
+     * others to the mean of the upper class with the membership
+     * 1 / (1 + |level - mean| / (gmax - gmin)); the threshold is the t whose memberships
+     * have the smallest Shannon entropy, or gmin if a single level is occupied. As with
+     * JAI's binarize, the pixels at level t itself then go to the upper class.
+     */
+    static int minFuzzinessThreshold (int[] histogram) {
+        int levels = histogram.length;
+        int min = 0;
+        while (min < levels - 1 && histogram[min] == 0) min++;
+        int max = levels - 1;
+        while (max > min && histogram[max] == 0) max--;
+        if (min == max) return min;
+        // running counts and sums of the levels up to t
+        long[] counts = new long[levels];
+        double[] sums = new double[levels];
+        long count = 0;
+        double sum = 0;
+        for (int level = min; level <= max; level++) {
+            count += histogram[level];
+            sum += (double) level * histogram[level];
+            counts[level] = count;
+            sums[level] = sum;
+        }
+        double range = max - min;
+        int threshold = min;
+        double minFuzziness = Double.MAX_VALUE;
+        for (int t = min; t < max; t++) {
+            // both classes have pixels: gmin is in the lower one, gmax in the upper one
+            double lowerMean = sums[t] / counts[t];
+            double upperMean = (sum - sums[t]) / (count - counts[t]);
+            double fuzziness = 0;
+            for (int level = min; level <= max; level++) {
+                if (histogram[level] == 0) continue;
+                double mean = level <= t ? lowerMean : upperMean;
+                double membership = 1 / (1 + Math.abs(level - mean) / range);
+                fuzziness += histogram[level] * entropy(membership);
+            }
+            if (fuzziness < minFuzziness) {
+                minFuzziness = fuzziness;
+                threshold = t;
+            }
+        }
+        return threshold;
+    }
+
+    // Shannon's entropy function, 0 at 0 and 1
+    private static double entropy (double membership) {
+        if (membership <= 0 || membership >= 1) return 0;
+        return -membership * Math.log(membership) - (1 - membership) * Math.log(1 - membership);
+    }
+
+    /**
+     * Otsu's threshold: for the level t which maximizes the variance between the pixels
+     * up to t and the others, the first level of the upper class (t + 1).
+     */
+    static int maxVarianceThreshold (int[] histogram) {
+        long count = 0;
+        double sum = 0;
+        for (int level = 0; level < histogram.length; level++) {
+            count += histogram[level];
+            sum += (double) level * histogram[level];
+        }
+        long lowerCount = 0;
+        double lowerSum = 0;
+        int threshold = 0;
+        double maxVariance = -1;
+        for (int t = 0; t < histogram.length; t++) {
+            lowerCount += histogram[t];
+            lowerSum += (double) t * histogram[t];
+            long upperCount = count - lowerCount;
+            if (lowerCount == 0 || upperCount == 0) continue;
+            double difference = lowerSum / lowerCount - (sum - lowerSum) / upperCount;
+            double variance = (double) lowerCount * upperCount * difference * difference;
+            if (variance > maxVariance) {
+                maxVariance = variance;
+                threshold = t + 1;
+            }
+        }
+        return threshold;
+    }
+
+    private static <T> List<T> invokeAll (List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while binarizing", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Binarizing failed", e.getCause());
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,69 @@
+package CORE;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * A black-and-white image packed one bit per pixel. Every row starts on a new
+ * long, so whole rows can be shifted and combined 64 pixels at a time; the
+ * bits past the width of a row are always 0.
+ */
+public class BinaryMask extends SampleMatrix {
+    // The number of longs per row
+    final int stride;
+    final long[] bits;
+
+    public BinaryMask (int width, int height) {
+        super(width, height);
+        stride = (width + 63) >>> 6;
+        bits = new long[stride * height];
+    }
+
+    @Override
+    public int get (int x, int y) {
+        return (int) (bits[y * stride + (x >>> 6)] >>> x) & 1;
+    }
+
+    public void set (int x, int y) {
+        bits[y * stride + (x >>> 6)] |= 1L << x;
+    }
+
+    public void clear (int x, int y) {
+        bits[y * stride + (x >>> 6)] &= ~(1L << x);
+    }
+
+    /**
+     * @return a new mask with the pixels of the rectangle.
+     */
+    public BinaryMask crop (int x, int y, int width, int height) {
+        BinaryMask crop = new BinaryMask(width, height);
+        int shift = x & 63;
+        for (int row = 0; row < height; row++) {
+            int from = (y + row) * stride + (x >>> 6);
+            int to = row * crop.stride;
+            for (int i = 0; i < crop.stride; i++) {
+                long word = bits[from + i] >>> shift;
+                if (shift != 0 && (x >>> 6) + i + 1 < stride) word |= bits[from + i + 1] << (64 - shift);
+                crop.bits[to + i] = word;
+            }
+            if ((width & 63) != 0) crop.bits[to + crop.stride - 1] &= (1L << width) - 1;
+        }
+        return crop;
+    }
+
+    /**
+     * @return a TYPE_BYTE_BINARY copy of the mask.
+     */
+    public BufferedImage toImage () {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] bytes = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int bytesPerRow = (width + 7) >>> 3;
+        for (int y = 0; y < height; y++)
+            for (int b = 0; b < bytesPerRow; b++) {
+                // the image packs the leftmost pixel in the highest bit
+                int value = (int) (bits[y * stride + (b >>> 3)] >>> ((b & 7) << 3)) & 0xFF;
+                bytes[y * bytesPerRow + b] = (byte) (Integer.reverse(value) >>> 24);
+            }
+        return image;
+    }
+}
@@ -0,0 +1,43 @@
+package CORE;
+
+import java.awt.image.Raster;
+
+/**
+ * A {@link SampleMatrix} with one byte per pixel, in a single row-major array.
+ * The matrix may be a window on a larger array.
+ */
+class ByteMatrix extends SampleMatrix {
+    private final byte[] values;
+    private final int offset;
+    private final int stride;
+
+    ByteMatrix (int width, int height) {
+        this(new byte[width * height], 0, width, width, height);
+    }
+
+    /**
+     * Wraps the array, whose pixel (x, y) is at offset + y * stride + x.
+     */
+    ByteMatrix (byte[] values, int offset, int stride, int width, int height) {
+        super(width, height);
+        this.values = values;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    static ByteMatrix copyOf (Raster raster) {
+        ByteMatrix matrix = new ByteMatrix(raster.getWidth(), raster.getHeight());
+        int[] row = new int[matrix.width];
+        for (int y = 0; y < matrix.height; y++) {
+            raster.getSamples(raster.getMinX(), raster.getMinY() + y, matrix.width, 1, 0, row);
+            for (int x = 0; x < matrix.width; x++)
+                matrix.values[y * matrix.width + x] = (byte) row[x];
+        }
+        return matrix;
+    }
+
+    @Override
+    public int get (int x, int y) {
+        return values[offset + y * stride + x] & 0xFF;
+    }
+}
@@ -0,0 +1,168 @@
+package CORE;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.Vector;
+
+/**
+ * A read-only tiled view of the labels of a {@link RegionLabeling} task, as
+ * TYPE_INT samples. The tiles are children of the label array itself (copies
+ * while the labels are stored as shorts), and a tile is only given once all its
+ * rows are final (see {@link RegionLabeling#getCompletedRows()}), so a progress
+ * preview never sees labels which may still change.
+ */
+final class CompletedTilesImage implements RenderedImage {
+    private final RegionLabeling task;
+    private final int tileWidth;
+    private final int tileHeight;
+
+    CompletedTilesImage (RegionLabeling task, int tileWidth, int tileHeight) {
+        if (tileWidth < 1 || tileHeight < 1) throw new IllegalArgumentException("Empty tiles");
+        this.task = task;
+        this.tileWidth = Math.min(tileWidth, task.width);
+        this.tileHeight = Math.min(tileHeight, task.height);
+    }
+
+    /**
+     * @return true if the labels of the tile are final.
+     */
+    public boolean isTileCompleted (int tileX, int tileY) {
+        return Math.min(task.height, (tileY + 1) * tileHeight) <= task.getCompletedRows();
+    }
+
+    /**
+     * @return the tile, or null if its labels are not final yet.
+     */
+    @Override
+    public Raster getTile (int tileX, int tileY) {
+        if (!isTileCompleted(tileX, tileY)) return null;
+        int x = tileX * tileWidth;
+        int y = tileY * tileHeight;
+        int width = Math.min(tileWidth, task.width - x);
+        int height = Math.min(tileHeight, task.height - y);
+        if (task.labels.isNarrow()) {
+            // the short labels are copied into ints, the tile has its own
+            WritableRaster tile = Raster.createBandedRaster(DataBuffer.TYPE_INT, width, height, 1, new Point(x, y));
+            int[] data = ((DataBufferInt) tile.getDataBuffer()).getData();
+            for (int row = 0; row < height; row++)
+                task.labels.read((y + row) * task.width + x, data, row * width, width);
+            return tile;
+        }
+        DataBuffer dataBuffer = task.labels.getDataBuffer(false);
+        SampleModel sampleModel = new BandedSampleModel(DataBuffer.TYPE_INT, task.width, task.height, 1);
+        Raster labels = Raster.createRaster(sampleModel, dataBuffer, new Point(0, 0));
+        return labels.createChild(x, y, width, height, x, y, null);
+    }
+
+    @Override
+    public Raster getData () {
+        return getData(new Rectangle(0, 0, task.width, task.height));
+    }
+
+    @Override
+    public Raster getData (Rectangle rect) {
+        WritableRaster raster = Raster.createWritableRaster(getSampleModel().createCompatibleSampleModel(
+                rect.width, rect.height), new Point(rect.x, rect.y));
+        return copyData(raster);
+    }
+
+    @Override
+    public WritableRaster copyData (WritableRaster raster) {
+        Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, task.width, task.height));
+        if (bounds.isEmpty()) return raster;
+        for (int tileY = bounds.y / tileHeight; tileY <= (bounds.y + bounds.height - 1) / tileHeight; tileY++)
+            for (int tileX = bounds.x / tileWidth; tileX <= (bounds.x + bounds.width - 1) / tileWidth; tileX++) {
+                Raster tile = getTile(tileX, tileY);
+                if (tile == null) continue;
+                Rectangle part = tile.getBounds().intersection(bounds);
+                // the child keeps the image coordinates, they give the destination
+                raster.setRect(tile.createChild(part.x, part.y, part.width, part.height, part.x, part.y, null));
+            }
+        return raster;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources () {
+        return null;
+    }
+
+    @Override
+    public Object getProperty (String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames () {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel () {
+        return null;
+    }
+
+    @Override
+    public SampleModel getSampleModel () {
+        return new BandedSampleModel(DataBuffer.TYPE_INT, tileWidth, tileHeight, 1);
+    }
+
+    @Override
+    public int getWidth () {
+        return task.width;
+    }
+
+    @Override
+    public int getHeight () {
+        return task.height;
+    }
+
+    @Override
+    public int getMinX () {
+        return 0;
+    }
+
+    @Override
+    public int getMinY () {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles () {
+        return (task.width + tileWidth - 1) / tileWidth;
+    }
+
+    @Override
+    public int getNumYTiles () {
+        return (task.height + tileHeight - 1) / tileHeight;
+    }
+
+    @Override
+    public int getMinTileX () {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY () {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth () {
+        return tileWidth;
+    }
+
+    @Override
+    public int getTileHeight () {
+        return tileHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset () {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset () {
+        return 0;
+    }
+}
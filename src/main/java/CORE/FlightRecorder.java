@@ -0,0 +1,22 @@
+package CORE;
+
+/**
+ * Tells whether this JVM has Flight Recorder events (Java 11, or 8u262 and
+ * later). The classes extending jdk.jfr.Event are only loaded when it does;
+ * they are then created only while a recording enables them.
+ */
+public final class FlightRecorder {
+    public static final boolean AVAILABLE = hasClass("jdk.jfr.Event");
+
+    private FlightRecorder () {
+    }
+
+    private static boolean hasClass (String name) {
+        try {
+            Class.forName(name, false, FlightRecorder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -16,19 +16,26 @@ package CORE;/*
  */
 
 
+import java.util.concurrent.CancellationException;
+
 /**
- * This abstract class represents a image processing task that is executed
- * on its own thread.
+ * This abstract class represents a image processing task, which can be run
+ * by an executor (see {@link TaskExecutor}) or on its own thread.
  * This class uses the concept of processing task size and position - if
  * one can estimate the size (in steps, for example) of the task, an
  * application could get the position of the processing, i.e. how far we
- * are on the task.
+ * are on the task. The position and the cancellation flag may be read and
+ * set from any thread while the task runs.
  */
-public abstract class ImageProcessingTask extends Thread {
+public abstract class ImageProcessingTask implements Runnable {
+    // Set by cancel(), checked by the task between its steps
+    private volatile boolean cancelled;
+
     /**
-     * This is the method (inherited from Thread) which will do the bulk
+     * This is the method (inherited from Runnable) which will do the bulk
      * image processing. It is declared as abstract as a reminder to the
-     * programmer, which must implement it.
+     * programmer, which must implement it. It should call checkCancelled()
+     * every now and then.
      */
     public abstract void run ();
 
@@ -47,7 +54,7 @@ public abstract class ImageProcessingTask extends Thread {
     /**
      * This method returns the position on the image processing task, i.e. how many
      * processing steps were already done. The classes that inherits from this one
-     * must implement this method.
+     * must implement this method, and it must be safe to call from another thread.
      *
      * @return the position of the task processing.
      */
@@ -64,4 +71,26 @@ public abstract class ImageProcessingTask extends Thread {
      */
     public abstract boolean isFinished ();
 
+    /**
+     * This method asks the task to stop. The task stops at its next call to
+     * checkCancelled() and is never finished.
+     */
+    public void cancel () {
+        cancelled = true;
+    }
+
+    /**
+     * This method returns true if the task was asked to stop.
+     */
+    public boolean isCancelled () {
+        return cancelled;
+    }
+
+    /**
+     * This method throws a CancellationException if the task was asked to stop.
+     */
+    protected void checkCancelled () {
+        if (cancelled) throw new CancellationException(getClass().getSimpleName() + " cancelled");
+    }
+
 }
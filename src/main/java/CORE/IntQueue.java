@@ -0,0 +1,43 @@
+package CORE;
+
+/**
+ * A FIFO queue of primitive ints on a growable ring buffer. It is meant to
+ * be reused: once grown, the buffer is kept for the next regions.
+ */
+class IntQueue {
+    private int[] elements;
+    private int head;
+    private int size;
+
+    IntQueue (int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1)) << 1;
+        elements = new int[capacity];
+    }
+
+    boolean isEmpty () {
+        return size == 0;
+    }
+
+    void add (int value) {
+        if (size == elements.length) grow();
+        elements[(head + size) & (elements.length - 1)] = value;
+        size++;
+    }
+
+    int poll () {
+        int value = elements[head];
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        return value;
+    }
+
+    // Doubles the buffer, unrolling the ring so the head is at 0
+    private void grow () {
+        int[] larger = new int[elements.length * 2];
+        int firstPart = elements.length - head;
+        System.arraycopy(elements, head, larger, 0, firstPart);
+        System.arraycopy(elements, 0, larger, firstPart, head);
+        elements = larger;
+        head = 0;
+    }
+}
@@ -0,0 +1,101 @@
+package CORE;
+
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * The region labels of an image, in a single row-major array (the label of
+ * pixel (x, y) is at y * width + x). 0 means "not labeled yet".
+ * A narrow buffer stores the labels as unsigned shorts, half the memory of ints,
+ * and switches to ints the first time a label doesn't fit; it must then only be
+ * written by one thread. A wide buffer stores ints from the start.
+ * The labels are given out as ints only: the int array can be wrapped in a
+ * {@link DataBufferInt} to back an image without a copy, from any thread, as it
+ * is published once filled with the short labels; the short array is copied.
+ */
+final class LabelBuffer {
+    private static final int NARROW_MAX = Character.MAX_VALUE;
+
+    private final short[] narrow;
+    // The writing thread's view of the int array, and the one of the other threads
+    private int[] wide;
+    private volatile int[] publishedWide;
+
+    LabelBuffer (int size, boolean narrow) {
+        if (narrow) this.narrow = new short[size];
+        else {
+            this.narrow = null;
+            wide = publishedWide = new int[size];
+        }
+    }
+
+    int get (int index) {
+        return wide != null ? wide[index] : narrow[index] & NARROW_MAX;
+    }
+
+    void set (int index, int label) {
+        if (wide != null) wide[index] = label;
+        else if (label <= NARROW_MAX) narrow[index] = (short) label;
+        else {
+            widen();
+            wide[index] = label;
+        }
+    }
+
+    int size () {
+        return narrow != null ? narrow.length : wide.length;
+    }
+
+    /**
+     * Sets every label back to 0, for the next image of the same size. A narrow
+     * buffer goes back to shorts; the int array it was widened to is left to the
+     * images it backs.
+     */
+    void clear () {
+        if (narrow == null) Arrays.fill(wide, 0);
+        else {
+            Arrays.fill(narrow, (short) 0);
+            wide = publishedWide = null;
+        }
+    }
+
+    boolean isNarrow () {
+        return publishedWide == null;
+    }
+
+    /**
+     * Wraps the labels in a data buffer of ints. A wide buffer is wrapped without a
+     * copy, so the data buffer sees later writes. A narrow one is widened for good
+     * first if widen is set, which only its writer may do (or any thread once it is
+     * done), and copied otherwise.
+     */
+    DataBufferInt getDataBuffer (boolean widen) {
+        int[] wide = publishedWide;
+        if (wide == null && widen) {
+            widen();
+            wide = this.wide;
+        } else if (wide == null) {
+            wide = new int[narrow.length];
+            read(0, wide, 0, wide.length);
+        }
+        return new DataBufferInt(wide, wide.length);
+    }
+
+    /**
+     * Copies length labels from the index, from any thread.
+     */
+    void read (int index, int[] to, int offset, int length) {
+        int[] wide = publishedWide;
+        if (wide != null) System.arraycopy(wide, index, to, offset, length);
+        else for (int i = 0; i < length; i++)
+            to[offset + i] = narrow[index + i] & NARROW_MAX;
+    }
+
+    private void widen () {
+        int[] widened = new int[narrow.length];
+        for (int i = 0; i < narrow.length; i++)
+            widened[i] = narrow[i] & NARROW_MAX;
+        wide = widened;
+        publishedWide = widened;
+    }
+}
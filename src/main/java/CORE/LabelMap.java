@@ -0,0 +1,217 @@
+package CORE;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A label map file, memory-mapped: a single row, a range of rows or a single
+ * region is decoded without touching the rest of the file. The maps are written
+ * by {@link LabelMapWriter}, e.g. through RegionLabeling.saveLabels.
+ * The file holds, in big-endian order:
+ * - the header: the magic "LMAP", the version (1), the width, the height, the
+ * label count (the highest label + 1) and the offset of the region table (a long);
+ * - the row index: the offset of the runs of every row, then of the region table
+ * (height + 1 longs);
+ * - the runs, row after row: the label and the length of every run, as unsigned
+ * varints (7 bits per byte, lowest first, the high bit set on all but the last);
+ * - the region table: the area, then the bounding box (min x, min y, max x, max y),
+ * of every label, as ints; an absent label has an area of 0.
+ * Reading is thread-safe. Maps are limited to 2 GB, which is hundreds of
+ * millions of runs.
+ */
+public class LabelMap implements Closeable {
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int width, height;
+    private final int labelCount;
+    private final long tableOffset;
+
+    private LabelMap (FileChannel channel, MappedByteBuffer map) throws IOException {
+        this.channel = channel;
+        this.map = map;
+        if (map.capacity() < LabelMapWriter.HEADER_SIZE || map.getInt(0) != LabelMapWriter.MAGIC)
+            throw new IOException("Err! Not a label map file");
+        int version = map.getInt(4);
+        if (version != LabelMapWriter.VERSION) throw new IOException("Err! Unknown label map version " + version);
+        width = map.getInt(8);
+        height = map.getInt(12);
+        labelCount = map.getInt(16);
+        tableOffset = map.getLong(20);
+        if (width < 1 || height < 1 || labelCount < 0
+                || map.capacity() < LabelMapWriter.HEADER_SIZE + 8L * (height + 1)
+                || tableOffset + 20L * labelCount != map.capacity() || rowOffset(height) != tableOffset)
+            throw new IOException("Err! Corrupted label map file");
+    }
+
+    /**
+     * Maps the file; close the map when done.
+     */
+    public static LabelMap open (Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Err! Label map larger than 2 GB");
+            return new LabelMap(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getWidth () {
+        return width;
+    }
+
+    public int getHeight () {
+        return height;
+    }
+
+    /**
+     * @return the highest label + 1.
+     */
+    public int getLabelCount () {
+        return labelCount;
+    }
+
+    /**
+     * @return the number of pixels of the label, 0 if it is absent.
+     */
+    public int getArea (int label) {
+        if (label < 0 || label >= labelCount) return 0;
+        return map.getInt(regionOffset(label));
+    }
+
+    /**
+     * @return the smallest rectangle holding all the pixels of the label, or null if it
+     * is absent.
+     */
+    public Rectangle getBounds (int label) {
+        if (getArea(label) == 0) return null;
+        int offset = regionOffset(label) + 4;
+        int minX = map.getInt(offset), minY = map.getInt(offset + 4);
+        int maxX = map.getInt(offset + 8), maxY = map.getInt(offset + 12);
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Decodes a row into the given array, or into a new one if it is null.
+     *
+     * @return the labels of the row.
+     */
+    public int[] readRow (int y, int[] row) {
+        checkRows(y, y + 1);
+        if (row == null) row = new int[width];
+        Runs runs = new Runs(y);
+        for (int x = 0; x < width; ) {
+            runs.next();
+            for (int end = x + runs.length; x < end; x++)
+                row[x] = runs.label;
+        }
+        return row;
+    }
+
+    /**
+     * Decodes the rows fromY (included) to toY (excluded).
+     *
+     * @return their labels, row after row.
+     */
+    public int[] readRows (int fromY, int toY) {
+        checkRows(fromY, toY);
+        int[] labels = new int[(toY - fromY) * width];
+        int[] row = new int[width];
+        for (int y = fromY; y < toY; y++) {
+            readRow(y, row);
+            System.arraycopy(row, 0, labels, (y - fromY) * width, width);
+        }
+        return labels;
+    }
+
+    /**
+     * @return the label of a pixel, decoding its row up to it.
+     */
+    public int get (int x, int y) {
+        if (x < 0 || x >= width) throw new IndexOutOfBoundsException("x " + x + " outside of 0-" + (width - 1));
+        checkRows(y, y + 1);
+        Runs runs = new Runs(y);
+        for (int end = 0; ; ) {
+            runs.next();
+            end += runs.length;
+            if (x < end) return runs.label;
+        }
+    }
+
+    /**
+     * Decodes the rows of the bounding box of a label, and only them.
+     *
+     * @return the pixels of the label in its bounding box (see getBounds), or null
+     * if it is absent.
+     */
+    public BinaryMask readRegion (int label) {
+        Rectangle bounds = getBounds(label);
+        if (bounds == null) return null;
+        BinaryMask mask = new BinaryMask(bounds.width, bounds.height);
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            Runs runs = new Runs(y);
+            // the runs past the bounding box can't hold the label
+            for (int x = 0; x < bounds.x + bounds.width; x += runs.length) {
+                runs.next();
+                if (runs.label == label)
+                    for (int i = x; i < x + runs.length; i++)
+                        mask.set(i - bounds.x, y - bounds.y);
+            }
+        }
+        return mask;
+    }
+
+    @Override
+    public void close () throws IOException {
+        channel.close();
+    }
+
+    private void checkRows (int fromY, int toY) {
+        if (fromY < 0 || toY > height || fromY > toY)
+            throw new IndexOutOfBoundsException("Rows " + fromY + "-" + toY + " outside of 0-" + height);
+    }
+
+    private int rowOffset (int y) {
+        return (int) map.getLong(LabelMapWriter.HEADER_SIZE + 8 * y);
+    }
+
+    private int regionOffset (int label) {
+        return (int) (tableOffset + 20L * label);
+    }
+
+    /**
+     * Reads the runs of a row one after the other, with absolute gets so that
+     * every reader has its own position.
+     */
+    private final class Runs {
+        private int position;
+        int label;
+        int length;
+
+        Runs (int y) {
+            position = rowOffset(y);
+        }
+
+        void next () {
+            label = varint();
+            length = varint();
+        }
+
+        private int varint () {
+            ByteBuffer map = LabelMap.this.map;
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = map.get(position++);
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package CORE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes a label map file row by row, see {@link LabelMap} for the format. The
+ * runs are streamed through a direct buffer, and the row index and the region
+ * table (kept in memory meanwhile) are written when the writer is closed.
+ */
+public class LabelMapWriter implements Closeable {
+    static final int MAGIC = 0x4C4D4150;    // "LMAP"
+    static final int VERSION = 1;
+    // magic, version, width, height, label count, region table offset
+    static final int HEADER_SIZE = 4 * 5 + 8;
+    // The bytes of the longest run: two 5-byte varints
+    private static final int MAX_RUN_SIZE = 10;
+
+    private final FileChannel channel;
+    private final int width, height;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    // The offset of every row, then of the end of the runs
+    private final long[] rowOffsets;
+    private long position;
+    private int rows;
+    // The area and bounding box of every label, as in RegionStatistics
+    private int[] area = new int[256];
+    private int[] minX = new int[256], minY = new int[256], maxX = new int[256], maxY = new int[256];
+    private int labelCount;
+    private final int maxLabel;
+
+    public LabelMapWriter (Path file, int width, int height) throws IOException {
+        if (width < 1 || height < 1) throw new IllegalArgumentException("The map should have at least one pixel");
+        this.width = width;
+        this.height = height;
+        rowOffsets = new long[height + 1];
+        maxLabel = (int) Math.min(Integer.MAX_VALUE - 1, (long) width * height);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        // the header and the row index are written on close
+        position = HEADER_SIZE + 8L * rowOffsets.length;
+        channel.position(position);
+    }
+
+    /**
+     * Writes the labels of the whole map, row after row.
+     */
+    public static void write (Path file, int[] labels, int width, int height) throws IOException {
+        try (LabelMapWriter writer = new LabelMapWriter(file, width, height)) {
+            for (int y = 0; y < height; y++)
+                writer.writeRow(labels, y * width);
+        }
+    }
+
+    /**
+     * Writes the labels of the whole map, row after row; the bytes are unsigned.
+     */
+    public static void write (Path file, byte[] labels, int width, int height) throws IOException {
+        int[] row = new int[width];
+        try (LabelMapWriter writer = new LabelMapWriter(file, width, height)) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++)
+                    row[x] = labels[y * width + x] & 0xFF;
+                writer.writeRow(row, 0);
+            }
+        }
+    }
+
+    /**
+     * Writes the next row, the width labels from the given offset. The region
+     * table has an entry for every label up to the highest one, so the labels go
+     * from 0 to the number of pixels, as region labels do.
+     */
+    public void writeRow (int[] labels, int offset) throws IOException {
+        if (rows == height) throw new IllegalStateException("All the rows are written");
+        int y = rows;
+        rowOffsets[y] = position;
+        for (int x = 0; x < width; ) {
+            int label = labels[offset + x];
+            if (label < 0 || label > maxLabel)
+                throw new IllegalArgumentException("Label " + label + " outside of 0-" + maxLabel);
+            int start = x;
+            while (x < width && labels[offset + x] == label) x++;
+            if (buffer.remaining() < MAX_RUN_SIZE) flush();
+            putVarint(label);
+            putVarint(x - start);
+            addRun(label, start, x - 1, y);
+        }
+        rows++;
+    }
+
+    private void addRun (int label, int fromX, int toX, int y) {
+        if (label >= area.length) {
+            int capacity = Math.max(area.length * 2, label + 1);
+            area = Arrays.copyOf(area, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+        }
+        if (area[label] == 0) {
+            minX[label] = fromX;
+            minY[label] = y;
+            maxX[label] = toX;
+        } else {
+            minX[label] = Math.min(minX[label], fromX);
+            maxX[label] = Math.max(maxX[label], toX);
+        }
+        maxY[label] = y;
+        area[label] += toX - fromX + 1;
+        labelCount = Math.max(labelCount, label + 1);
+    }
+
+    // 7 bits at a time, lowest first, the high bit set on all but the last byte
+    private void putVarint (int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+            position++;
+        }
+        buffer.put((byte) value);
+        position++;
+    }
+
+    private void flush () throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Writes the region table, the row index and the header, and closes the file.
+     *
+     * @throws IOException if not all the rows were written.
+     */
+    @Override
+    public void close () throws IOException {
+        try {
+            if (rows < height) throw new IOException("Only " + rows + " of the " + height + " rows were written");
+            flush();
+            long tableOffset = position;
+            rowOffsets[height] = tableOffset;
+            // the region table: area, then bounding box, of every label
+            for (int label = 0; label < labelCount; label++) {
+                if (buffer.remaining() < 20) flush();
+                buffer.putInt(area[label]);
+                buffer.putInt(minX[label]).putInt(minY[label]).putInt(maxX[label]).putInt(maxY[label]);
+            }
+            flush();
+            // the row index, then the header
+            channel.position(HEADER_SIZE);
+            for (long offset : rowOffsets) {
+                if (buffer.remaining() < 8) flush();
+                buffer.putLong(offset);
+            }
+            flush();
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(labelCount).putLong(tableOffset);
+            channel.position(0);
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package CORE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Binary mathematical morphology on {@link BinaryMask}s with square structuring
+ * elements, 64 pixels at a time. The window of a pixel near a border is cut to
+ * the image, which is what JAI does with the BORDER_COPY extender.
+ * Squares are separable, so every step is a horizontal pass (shifts of the row
+ * words) followed by a vertical pass (ORs or ANDs of whole rows).
+ */
+public final class Morphology {
+    // The rows of a band processed by one task
+    private static final int BAND_HEIGHT = 128;
+    // The rows a band of closeThenOpen needs on each side: the radii 1 + 2 + 1
+    private static final int HALO = 4;
+
+    private Morphology () {
+    }
+
+    /**
+     * Closes then opens the mask with a 3x3 square, i.e. dilates, erodes, erodes and
+     * dilates it. The two erosions are done as one with a 5x5 square. The image is
+     * split in bands which go through the three steps in parallel, each one in two
+     * buffers of its own, so no intermediate image is made.
+     *
+     * @return a new mask.
+     */
+    public static BinaryMask closeThenOpen (final BinaryMask mask) {
+        final BinaryMask result = new BinaryMask(mask.width, mask.height);
+        List<Callable<Void>> bands = new ArrayList<>();
+        for (int from = 0; from < mask.height; from += BAND_HEIGHT) {
+            final int bandFrom = from;
+            final int bandTo = Math.min(mask.height, from + BAND_HEIGHT);
+            bands.add(new Callable<Void>() {
+                @Override
+                public Void call () {
+                    closeThenOpen(mask, result, bandFrom, bandTo);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(bands)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while filtering", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Filtering failed", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Computes the rows [from, to) of the result from the rows [from - HALO, to + HALO)
+     * of the mask. The rows of the copy next to a band border are wrong after each step
+     * (their window is cut there), by one more row per unit of radius, but those are
+     * never further than HALO rows, so the band itself is right.
+     */
+    private static void closeThenOpen (BinaryMask mask, BinaryMask result, int from, int to) {
+        int stride = mask.stride;
+        int first = Math.max(0, from - HALO);
+        int last = Math.min(mask.height, to + HALO);
+        int rows = last - first;
+        long lastWordMask = (mask.width & 63) == 0 ? -1L : (1L << mask.width) - 1;
+        long[] a = Arrays.copyOfRange(mask.bits, first * stride, last * stride);
+        long[] b = new long[a.length];
+        square(a, b, rows, stride, lastWordMask, 1, false);
+        square(b, a, rows, stride, lastWordMask, 2, true);
+        square(a, b, rows, stride, lastWordMask, 1, false);
+        System.arraycopy(b, (from - first) * stride, result.bits, from * stride, (to - from) * stride);
+    }
+
+    /*
+     * Dilates (or erodes) the rows of source with a square of the given radius into
+     * target. The horizontal pass is done in place, so source is overwritten.
+     */
+    private static void square (long[] source, long[] target, int rows, int stride, long lastWordMask,
+                                int radius, boolean erode) {
+        if (stride == 0) return;
+        // Outside of the row, the bits that don't change the result: 0s for OR, 1s for AND
+        long outside = erode ? -1L : 0L;
+        for (int y = 0; y < rows; y++) {
+            int start = y * stride;
+            int end = start + stride - 1;
+            for (int step = 0; step < radius; step++) {
+                source[end] = (source[end] & lastWordMask) | (outside & ~lastWordMask);
+                long previous = outside;
+                for (int i = start; i <= end; i++) {
+                    long word = source[i];
+                    long next = i < end ? source[i + 1] : outside;
+                    // bit x of left is pixel x - 1, bit x of right is pixel x + 1
+                    long left = (word << 1) | (previous >>> 63);
+                    long right = (word >>> 1) | (next << 63);
+                    source[i] = erode ? word & left & right : word | left | right;
+                    previous = word;
+                }
+            }
+            source[end] &= lastWordMask;
+        }
+        for (int y = 0; y < rows; y++) {
+            int from = Math.max(0, y - radius) * stride;
+            int to = Math.min(rows - 1, y + radius) * stride;
+            for (int i = 0; i < stride; i++) {
+                long word = source[from + i];
+                for (int row = from + stride; row <= to; row += stride)
+                    word = erode ? word & source[row + i] : word | source[row + i];
+                target[y * stride + i] = word;
+            }
+        }
+    }
+}
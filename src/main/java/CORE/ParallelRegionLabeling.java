@@ -0,0 +1,237 @@
+package CORE;
+
+import javax.media.jai.PlanarImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class labels the same regions as {@link SimpleRegionGrowing} (8-connected
+ * pixels with the same value), but with a two-pass union-find algorithm that runs
+ * on all the cores:
+ * 1 - The image is split in horizontal strips. Each strip is scanned row by row in
+ * parallel; a pixel takes the provisional label of an already scanned neighbor with
+ * the same value (or a new one), and the neighbors' labels are recorded as equivalent
+ * in the strip's union-find table.
+ * 2 - The strips' tables are concatenated, and the pixels on each side of the strip
+ * borders are merged.
+ * 3 - Every set of equivalent labels gets its final label. Provisional labels are
+ * created in scan order and every set is represented by its smallest label, so
+ * numbering the sets in label order gives the labels SimpleRegionGrowing gives.
+ * 4 - The strips are relabeled in parallel.
+ */
+public class ParallelRegionLabeling extends RegionLabeling {
+    // The number of pixels already labeled, counted by all the strips
+    private final AtomicLong progress = new AtomicLong();
+
+    /**
+     * The constructor for the class, which will pre-process the original image
+     * (see {@link SimpleRegionGrowing#SimpleRegionGrowing(PlanarImage, boolean)}).
+     *
+     * @param im         the input image.
+     * @param preprocess NOT ( is this input img already black/white ? )
+     */
+    public ParallelRegionLabeling (PlanarImage im, boolean preprocess) {
+        super(im, preprocess, false);
+    }
+
+    /**
+     * The constructor for the class, which will pre-process the original image with
+     * the given threshold.
+     *
+     * @param im        the input image.
+     * @param threshold Binarizer.FUZZINESS or Binarizer.OTSU, or 0 if the image is
+     *                  already black/white.
+     */
+    public ParallelRegionLabeling (PlanarImage im, int threshold) {
+        super(im, threshold, false);
+    }
+
+    /**
+     * This method performs the bulk of the processing, on the common fork/join pool.
+     * The progress is reported after every strip of both passes.
+     */
+    public void run () {
+        startReports();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int stripCount = Math.max(1, Math.min(height, pool.getParallelism() * 4));
+        final Strip[] strips = new Strip[stripCount];
+        for (int s = 0; s < stripCount; s++)
+            strips[s] = new Strip((int) ((long) height * s / stripCount), (int) ((long) height * (s + 1) / stripCount));
+
+        // 1 - provisional labels, strip by strip
+        List<Callable<Void>> scans = new ArrayList<>();
+        for (final Strip strip : strips)
+            scans.add(new Callable<Void>() {
+                @Override
+                public Void call () {
+                    strip.scan();
+                    report();
+                    return null;
+                }
+            });
+        invokeAll(pool, scans);
+
+        // 2 - one table for the whole image; strip s uses the labels after offset[s]
+        int total = 0;
+        for (Strip strip : strips) {
+            strip.offset = total;
+            total += strip.labelCount;
+        }
+        int[] parent = new int[total + 1];
+        for (Strip strip : strips) {
+            for (int l = 1; l <= strip.labelCount; l++)
+                parent[strip.offset + l] = strip.offset + strip.parent[l];
+            strip.parent = null;
+        }
+        for (int s = 1; s < stripCount; s++) {
+            int y = strips[s].fromRow;
+            for (int x = 0; x < width; x++)
+                for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++)
+                    if (pixels.get(nx, y - 1) == pixels.get(x, y))
+                        union(parent, strips[s - 1].offset + labels.get((y - 1) * width + nx),
+                                strips[s].offset + labels.get(y * width + x));
+        }
+
+        // 3 - final labels, in the order of the sets' first pixels
+        final int[] finalLabel = new int[total + 1];
+        int regions = 0;
+        for (int l = 1; l <= total; l++)
+            if (parent[l] == l) finalLabel[l] = ++regions;
+        RegionStatistics regionStatistics = new RegionStatistics(regions + 1);
+        for (Strip strip : strips) {
+            for (int l = 1; l <= strip.labelCount; l++) {
+                int label = strip.offset + l;
+                finalLabel[label] = finalLabel[find(parent, label)];
+                regionStatistics.merge(finalLabel[label], strip.statistics, l);
+            }
+            strip.statistics = null;
+        }
+
+        // 4 - relabel the strips
+        List<Callable<Void>> relabels = new ArrayList<>();
+        for (final Strip strip : strips)
+            relabels.add(new Callable<Void>() {
+                @Override
+                public Void call () {
+                    strip.relabel(finalLabel);
+                    report();
+                    return null;
+                }
+            });
+        invokeAll(pool, relabels);
+        statistics = regionStatistics;
+        numberOfRegions = regions;
+        position = width * height;
+        report();
+    }
+
+    /**
+     * The position counts the pixels scanned in the first pass and relabeled in the
+     * last one, so it reaches the size only when the task is finished.
+     */
+    public long getPosition () {
+        if (position == width * height) return position;
+        return Math.min(progress.get() / 2, width * height - 1);
+    }
+
+    private static void invokeAll (ForkJoinPool pool, List<Callable<Void>> tasks) {
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while labeling", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException) throw (CancellationException) e.getCause();
+                throw new IllegalStateException("Labeling failed", e.getCause());
+            }
+        }
+    }
+
+    // Finds the smallest label of the set, halving the paths on the way
+    private static int find (int[] parent, int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    // Merges two sets, the smallest label stays the representative
+    private static int union (int[] parent, int label1, int label2) {
+        int root1 = find(parent, label1);
+        int root2 = find(parent, label2);
+        if (root1 < root2) {
+            parent[root2] = root1;
+            return root1;
+        }
+        parent[root1] = root2;
+        return root2;
+    }
+
+    /**
+     * A horizontal strip with its own provisional labels (1, 2, 3...) and union-find
+     * table, and the statistics of its provisional labels.
+     */
+    private class Strip {
+        final int fromRow;
+        final int toRow;
+        int[] parent = new int[64];
+        RegionStatistics statistics = new RegionStatistics(64);
+        int labelCount;
+        int offset;
+
+        Strip (int fromRow, int toRow) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        void scan () {
+            for (int y = fromRow; y < toRow; y++) {
+                checkCancelled();
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    int value = pixels.get(x, y);
+                    int label = 0;
+                    // The neighbors already scanned: west, then north-west, north and north-east
+                    if (x > 0 && pixels.get(x - 1, y) == value) label = labels.get(row + x - 1);
+                    if (y > fromRow)
+                        for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++)
+                            if (pixels.get(nx, y - 1) == value) {
+                                int north = labels.get(row - width + nx);
+                                label = label == 0 ? north : union(parent, label, north);
+                            }
+                    if (label == 0) {
+                        label = newLabel();
+                        statistics.start(label, x, y, value, levels.get(x, y));
+                    } else statistics.add(label, x, y, levels.get(x, y));
+                    labels.set(row + x, label);
+                }
+                progress.addAndGet(width);
+            }
+        }
+
+        private int newLabel () {
+            labelCount++;
+            if (labelCount == parent.length) parent = Arrays.copyOf(parent, parent.length * 2);
+            parent[labelCount] = labelCount;
+            return labelCount;
+        }
+
+        void relabel (int[] finalLabel) {
+            for (int y = fromRow; y < toRow; y++) {
+                checkCancelled();
+                for (int i = y * width; i < (y + 1) * width; i++)
+                    labels.set(i, finalLabel[offset + labels.get(i)]);
+                progress.addAndGet(width);
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package CORE;
+
+import javax.media.jai.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This abstract class holds what the region labeling algorithms share: the
+ * pre-processing of the input image, the pixel and label matrices and the
+ * per-region statistics, and the access to the results.
+ * A region is a set of 8-connected pixels with the same value. Regions are
+ * labeled 1, 2, 3... in the order their first pixel is met when scanning the
+ * image row by row, so every implementation gives the same labels.
+ * Subclasses implement run(), which must fill labels, statistics and numberOfRegions.
+ */
+public abstract class RegionLabeling extends ImageProcessingTask {
+    // Whether this JVM has Flight Recorder events
+    static final boolean JFR = FlightRecorder.AVAILABLE;
+    // The pixels dropped around the image by the noise filter
+    private static final int NOISE_BORDER = 8;
+    // The input image and its dimensions.
+    protected PlanarImage input;
+    protected int width, height;
+    // The pixel values (a bit per pixel for black-and-white images), and the selected
+    // labels, row by row (0 while a pixel has no label).
+    protected SampleMatrix pixels;
+    protected LabelBuffer labels;
+    // The gray levels of the source pixels, at the same coordinates as pixels (the
+    // pixels themselves if the input was not binarized here).
+    protected SampleMatrix levels;
+    // The position, i.e. number of estimated algorithm steps we've already done,
+    // and the number of regions on the (finished) task; other threads read both.
+    protected volatile long position;
+    protected volatile int numberOfRegions;
+    // The area, bounding box, centroid, value and mean level of each region, indexed by label
+    protected RegionStatistics statistics;
+    // Whether the labels are stored as chars first, and the gray levels of the last
+    // binarized image
+    private final boolean narrowLabels;
+    private byte[] gray;
+    // Told about the progress, with the JFR event of the current stretch
+    private final List<RegionLabelingListener> listeners = new CopyOnWriteArrayList<>();
+    private long startTime;
+    private long reportedPosition;
+    private Object event;
+
+    /**
+     * The constructor for the class, which will pre-process the original image.
+     * Pre-processing includes converting images from colormapped to plain RGB,
+     * from RGB to gray and from gray to binary, if required. When we get the
+     * binary image, we will apply a filter to remove the salt-and-pepper noise.
+     *
+     * @param im           the input image.
+     * @param preprocess   NOT ( is this input img already black/white ? )
+     * @param narrowLabels store the labels as chars until there are too many regions
+     *                     (only for single-threaded labeling)
+     */
+    protected RegionLabeling (PlanarImage im, boolean preprocess, boolean narrowLabels) {
+        this(im, preprocess ? Binarizer.FUZZINESS : 0, narrowLabels);
+    }
+
+    /**
+     * The constructor for the class, which will pre-process the original image with
+     * the given threshold.
+     *
+     * @param im           the input image.
+     * @param threshold    how the image is binarized, Binarizer.FUZZINESS or Binarizer.OTSU,
+     *                     or 0 if it is already black/white.
+     * @param narrowLabels store the labels as chars until there are too many regions
+     *                     (only for single-threaded labeling)
+     */
+    protected RegionLabeling (PlanarImage im, int threshold, boolean narrowLabels) {
+        this.narrowLabels = narrowLabels;
+        load(im, threshold);
+    }
+
+    /**
+     * This method pre-processes an input image as the constructor does and clears the
+     * labels and the statistics, so that a task can label image after image. The label
+     * buffer, the statistics and the gray levels are kept for an image of the same size:
+     * the output and the statistics of the previous image are then overwritten.
+     *
+     * @param im        the input image.
+     * @param threshold how the image is binarized, Binarizer.FUZZINESS or Binarizer.OTSU,
+     *                  or 0 if it is already black/white.
+     */
+    protected final void load (PlanarImage im, int threshold) {
+        // The input image MUST be black-and-white for this implementation. Let's
+        // convert it to gray and binarize it in one go if required.
+        if (threshold != 0) {
+            // Binarize it, then filter the noise on its bits; the gray levels are kept
+            // for the statistics, without the border filterNoise drops.
+            int size = im.getWidth() * im.getHeight();
+            if (gray == null || gray.length != size) gray = new byte[size];
+            pixels = filterNoise(Binarizer.binarize(im, threshold, gray));
+            input = PlanarImage.wrapRenderedImage(((BinaryMask) pixels).toImage());
+            levels = new ByteMatrix(gray, NOISE_BORDER * im.getWidth() + NOISE_BORDER, im.getWidth(),
+                    pixels.getWidth(), pixels.getHeight());
+        } else {
+            input = im;
+            // Create and fill the data structures needed for the algorithm.
+            pixels = SampleMatrix.read(input.getData());
+            levels = pixels;
+        }
+        width = pixels.getWidth();
+        height = pixels.getHeight();
+        if (labels != null && labels.size() == width * height) labels.clear();
+        else labels = new LabelBuffer(width * height, narrowLabels);
+        position = 0;
+        numberOfRegions = 0;
+        if (statistics != null) statistics.clear();
+        else statistics = new RegionStatistics(256);
+    }
+
+    /*
+     * This method gets rid of some annoying noise and small regions with a closing then
+     * an opening, with a 3x3 square. It used to be four JAI dilate and erode operations
+     * with a 5x5 kernel holding the 3x3 square; without a border extender, each of them
+     * dropped the 2 pixels around the image where the kernel didn't fit. These 8 pixels
+     * are still dropped, so the result is the same.
+     */
+    private static SampleMatrix filterNoise (BinaryMask binary) {
+        int width = Math.max(0, binary.getWidth() - 2 * NOISE_BORDER);
+        int height = Math.max(0, binary.getHeight() - 2 * NOISE_BORDER);
+        return Morphology.closeThenOpen(binary).crop(NOISE_BORDER, NOISE_BORDER, width, height);
+    }
+
+    /**
+     * This method adds a listener, told about the progress of the task.
+     */
+    public void addListener (RegionLabelingListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener (RegionLabelingListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * This method starts the progress reports; run() calls it first.
+     */
+    protected synchronized void startReports () {
+        startTime = System.nanoTime();
+        reportedPosition = 0;
+        if (JFR) event = RegionLabelingEvent.create();
+    }
+
+    /**
+     * This method tells the listeners and JFR about the progress; run() calls it every
+     * now and then, and once finished.
+     */
+    protected synchronized void report () {
+        long pixels = getPosition();
+        int regions = numberOfRegions;
+        long nanos = System.nanoTime() - startTime;
+        for (RegionLabelingListener listener : listeners)
+            listener.progress(this, pixels, regions, nanos);
+        if (event != null) RegionLabelingEvent.finish(event, this, pixels - reportedPosition, regions);
+        // the next stretch, if a recording wants it by now
+        event = JFR && !isFinished() ? RegionLabelingEvent.create() : null;
+        reportedPosition = pixels;
+    }
+
+    /**
+     * This method returns the number of regions on the segmetation task. This
+     * number may be partial if the task has not finished yet.
+     */
+    public int getNumberOfRegions () {
+        return numberOfRegions;
+    }
+
+    /**
+     * This method returns the pixel count for a particular region or -1 if the
+     * region index is outside of the range.
+     */
+    public int getPixelCount (int region) {
+        if (region < 1 || region > numberOfRegions) return -1;
+        else return statistics.getArea(region);
+    }
+
+    /**
+     * This method returns the statistics of the regions (area, bounding box, centroid,
+     * pixel value and mean source gray level), which may be partial if the task has not
+     * finished yet.
+     */
+    public RegionStatistics getStatistics () {
+        return statistics;
+    }
+
+    /**
+     * This method relabels the regions with less than minPixels pixels as background
+     * (label 0). Only the bounding boxes of the removed regions are scanned, and the
+     * other regions keep their labels; the removed ones get an area of 0.
+     *
+     * @param minPixels the area of the smallest region to keep.
+     * @return the number of regions removed.
+     */
+    public int removeSmallRegions (int minPixels) {
+        if (!isFinished()) throw new IllegalStateException("The regions are not labeled yet");
+        int removed = 0;
+        for (int region = 1; region <= numberOfRegions; region++) {
+            int area = statistics.getArea(region);
+            if (area == 0 || area >= minPixels) continue;
+            Rectangle bounds = statistics.getBounds(region);
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++)
+                for (int i = y * width + bounds.x; i < y * width + bounds.x + bounds.width; i++)
+                    if (labels.get(i) == region) labels.set(i, 0);
+            statistics.remove(region);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * This method saves the labels as a run-length encoded label map, which can be
+     * read back a row or a region at a time through {@link LabelMap}.
+     *
+     * @param file the file to write.
+     */
+    public void saveLabels (Path file) throws IOException {
+        if (!isFinished()) throw new IllegalStateException("The regions are not labeled yet");
+        int[] row = new int[width];
+        try (LabelMapWriter writer = new LabelMapWriter(file, width, height)) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++)
+                    row[x] = labels.get(y * width + x);
+                writer.writeRow(row, 0);
+            }
+        }
+    }
+
+    /**
+     * This method returns the estimated size (steps) for this task. We estimate it as
+     * being the size of the image.
+     */
+    public long getSize () {
+        return width * height;
+    }
+
+    /**
+     * This method returns the position on the image processing task.
+     */
+    public long getPosition () {
+        return position;
+    }
+
+    /**
+     * This method returns true if the image processing task has finished.
+     */
+    public boolean isFinished () {
+        return (position == width * height);
+    }
+
+    /**
+     * This method returns the number of rows whose labels are final. Subclasses which
+     * label the image row by row can tell it before the task is finished.
+     */
+    protected int getCompletedRows () {
+        return isFinished() ? height : 0;
+    }
+
+    /**
+     * This method returns the output image, whose samples are TYPE_INT labels in a
+     * DataBufferInt. It may be sort of corrupted if the image processing task is still
+     * running. The image is backed by the labels themselves, so no copy is made and it
+     * shows the changes made afterwards (e.g. by removeSmallRegions); the labels a
+     * SimpleRegionGrowing stores as shorts are turned into ints for good here, or only
+     * copied while the task is running.
+     */
+    public PlanarImage getOutput () {
+        // Wrap the labels array in a Data Buffer.
+        DataBuffer dbuffer = labels.getDataBuffer(isFinished());
+        // Create a sample model of the same type.
+        SampleModel sampleModel =
+                RasterFactory.createBandedSampleModel(dbuffer.getDataType(), width, height, 1);
+        // Create a compatible ColorModel.
+        ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        // Create a WritableRaster.
+        WritableRaster raster = RasterFactory.createWritableRaster(sampleModel, dbuffer, new Point(0, 0));
+        // Create a TiledImage which shares the raster's data buffer.
+        return new TiledImage(new BufferedImage(colorModel, raster, false, null), true);
+    }
+
+    /**
+     * This method returns a read-only tiled view of the labels which can be polled while
+     * the task is running: only the tiles whose labels are final are given, the others
+     * are null (and read as 0 through getData).
+     *
+     * @param tileWidth  the width of the tiles.
+     * @param tileHeight the height of the tiles.
+     */
+    public RenderedImage getPartialOutput (int tileWidth, int tileHeight) {
+        return new CompletedTilesImage(this, tileWidth, tileHeight);
+    }
+
+    /**
+     * This method returns the (local) input image, i.e. the pre-processed image.
+     *
+     * @return
+     */
+    public PlanarImage getInternalImage () {
+        return input;
+    }
+
+}
@@ -0,0 +1,52 @@
+package CORE;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event of a stretch of region labeling, between two progress reports;
+ * the pixels it labeled over its duration give the throughput. Only used when
+ * the JVM has JFR (see {@link RegionLabeling#JFR}), so this class is never
+ * loaded otherwise, and only created while a recording enables it.
+ */
+@Name("RegionLabeling.Progress")
+@Label("Region Labeling Progress")
+@Category("Segmentation")
+@Description("Pixels labeled since the previous report, and the regions found so far")
+final class RegionLabelingEvent extends Event {
+    @Label("Algorithm")
+    String algorithm;
+    @Label("Labeled Pixels")
+    long pixels;
+    @Label("Total Pixels")
+    long totalPixels;
+    @Label("Regions")
+    int regions;
+    @Label("Finished")
+    boolean finished;
+
+    /**
+     * @return the started event, or null if no recording enables it.
+     */
+    static Object create () {
+        RegionLabelingEvent event = new RegionLabelingEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+    static void finish (Object started, RegionLabeling task, long pixels, int regions) {
+        RegionLabelingEvent event = (RegionLabelingEvent) started;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.algorithm = task.getClass().getSimpleName();
+        event.pixels = pixels;
+        event.totalPixels = task.getSize();
+        event.regions = regions;
+        event.finished = task.isFinished();
+        event.commit();
+    }
+}
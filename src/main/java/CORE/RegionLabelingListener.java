@@ -0,0 +1,19 @@
+package CORE;
+
+/**
+ * Receives the progress of a {@link RegionLabeling} task. It may be called from
+ * the threads of the task, one at a time.
+ */
+public interface RegionLabelingListener {
+
+    /**
+     * Called every few rows, and once the task is finished.
+     *
+     * @param task    the task, which tells whether it is finished.
+     * @param pixels  the pixels already labeled.
+     * @param regions the regions found so far (0 until the end for tasks which only
+     *                number them at the end).
+     * @param nanos   the time since the task started.
+     */
+    void progress (RegionLabeling task, long pixels, int regions, long nanos);
+}
@@ -0,0 +1,166 @@
+package CORE;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Per-region measures gathered while the regions are labeled: the area, the
+ * bounding box, the centroid, the pixel value (all the pixels of a region
+ * have the same value) and the mean gray level of the source pixels (which
+ * vary inside a region when the source was binarized). They are kept in one
+ * primitive array per measure, indexed by region label (0 is unused), so
+ * every query is O(1).
+ */
+public class RegionStatistics {
+    private int size;
+    private int[] area;
+    private int[] minX, minY, maxX, maxY;
+    private long[] sumX, sumY;
+    private int[] value;
+    private long[] sumLevel;
+
+    RegionStatistics (int initialCapacity) {
+        int capacity = Math.max(2, initialCapacity);
+        area = new int[capacity];
+        minX = new int[capacity];
+        minY = new int[capacity];
+        maxX = new int[capacity];
+        maxY = new int[capacity];
+        sumX = new long[capacity];
+        sumY = new long[capacity];
+        value = new int[capacity];
+        sumLevel = new long[capacity];
+    }
+
+    /**
+     * @return the highest region label with statistics.
+     */
+    public int getNumberOfRegions () {
+        return size;
+    }
+
+    /**
+     * @return the number of pixels of the region, or -1 if there is no such region.
+     */
+    public int getArea (int region) {
+        if (region < 1 || region > size) return -1;
+        return area[region];
+    }
+
+    /**
+     * @return the smallest rectangle holding all the pixels of the region.
+     */
+    public Rectangle getBounds (int region) {
+        check(region);
+        return new Rectangle(minX[region], minY[region], maxX[region] - minX[region] + 1,
+                maxY[region] - minY[region] + 1);
+    }
+
+    public double getCentroidX (int region) {
+        check(region);
+        return (double) sumX[region] / area[region];
+    }
+
+    public double getCentroidY (int region) {
+        check(region);
+        return (double) sumY[region] / area[region];
+    }
+
+    /**
+     * @return the value of the labeled pixels of the region, e.g. 0 or 1 once binarized.
+     */
+    public int getValue (int region) {
+        check(region);
+        return value[region];
+    }
+
+    /**
+     * @return the mean gray level (0-255) of the source pixels of the region, before
+     * the binarization if there was one.
+     */
+    public double getMeanLevel (int region) {
+        check(region);
+        return (double) sumLevel[region] / area[region];
+    }
+
+    /**
+     * Forgets every region, keeping the arrays for the next image.
+     */
+    void clear () {
+        size = 0;
+    }
+
+    /**
+     * Starts a region with its first pixel, of the given value and source gray level.
+     */
+    void start (int region, int x, int y, int pixelValue, int level) {
+        if (region >= area.length) grow(Math.max(region + 1, area.length * 2));
+        size = Math.max(size, region);
+        area[region] = 1;
+        minX[region] = maxX[region] = x;
+        minY[region] = maxY[region] = y;
+        sumX[region] = x;
+        sumY[region] = y;
+        value[region] = pixelValue;
+        sumLevel[region] = level;
+    }
+
+    /**
+     * Adds a pixel, of the given source gray level, to a started region.
+     */
+    void add (int region, int x, int y, int level) {
+        area[region]++;
+        if (x < minX[region]) minX[region] = x;
+        if (x > maxX[region]) maxX[region] = x;
+        if (y < minY[region]) minY[region] = y;
+        if (y > maxY[region]) maxY[region] = y;
+        sumX[region] += x;
+        sumY[region] += y;
+        sumLevel[region] += level;
+    }
+
+    /**
+     * Adds a region of other statistics to a region of these.
+     */
+    void merge (int region, RegionStatistics other, int otherRegion) {
+        if (region > size || area[region] == 0) {
+            start(region, other.minX[otherRegion], other.minY[otherRegion], other.value[otherRegion], 0);
+            area[region] = 0;
+            sumX[region] = sumY[region] = 0;
+        }
+        area[region] += other.area[otherRegion];
+        minX[region] = Math.min(minX[region], other.minX[otherRegion]);
+        minY[region] = Math.min(minY[region], other.minY[otherRegion]);
+        maxX[region] = Math.max(maxX[region], other.maxX[otherRegion]);
+        maxY[region] = Math.max(maxY[region], other.maxY[otherRegion]);
+        sumX[region] += other.sumX[otherRegion];
+        sumY[region] += other.sumY[otherRegion];
+        sumLevel[region] += other.sumLevel[otherRegion];
+    }
+
+    /**
+     * Forgets a region, which then has an area of 0.
+     */
+    void remove (int region) {
+        area[region] = 0;
+        sumX[region] = sumY[region] = 0;
+        sumLevel[region] = 0;
+    }
+
+    private void check (int region) {
+        if (region < 1 || region > size || area[region] == 0)
+            throw new IllegalArgumentException("No region " + region);
+    }
+
+    private void grow (int capacity) {
+        area = Arrays.copyOf(area, capacity);
+        minX = Arrays.copyOf(minX, capacity);
+        minY = Arrays.copyOf(minY, capacity);
+        maxX = Arrays.copyOf(maxX, capacity);
+        maxY = Arrays.copyOf(maxY, capacity);
+        sumX = Arrays.copyOf(sumX, capacity);
+        sumY = Arrays.copyOf(sumY, capacity);
+        value = Arrays.copyOf(value, capacity);
+        sumLevel = Arrays.copyOf(sumLevel, capacity);
+    }
+}
@@ -0,0 +1,53 @@
+package CORE;
+
+import java.awt.image.Raster;
+
+/**
+ * The pixel values of a single-band image, stored row by row. Black-and-white
+ * images are kept as a {@link BinaryMask} (one bit per pixel), other images as
+ * one byte per pixel.
+ */
+public abstract class SampleMatrix {
+    protected final int width;
+    protected final int height;
+
+    protected SampleMatrix (int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return the value of the pixel (x, y).
+     */
+    public abstract int get (int x, int y);
+
+    public int getWidth () {
+        return width;
+    }
+
+    public int getHeight () {
+        return height;
+    }
+
+    /**
+     * Reads the first band of a raster, as a BinaryMask if it only holds 0s and 1s.
+     * Values are truncated to a byte, as the region labeling always did.
+     */
+    public static SampleMatrix read (Raster raster) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int minX = raster.getMinX();
+        int minY = raster.getMinY();
+        int[] row = new int[width];
+        BinaryMask mask = new BinaryMask(width, height);
+        for (int y = 0; y < height; y++) {
+            raster.getSamples(minX, minY + y, width, 1, 0, row);
+            for (int x = 0; x < width; x++) {
+                int value = row[x] & 0xFF;
+                if (value > 1) return ByteMatrix.copyOf(raster);
+                if (value == 1) mask.set(x, y);
+            }
+        }
+        return mask;
+    }
+}
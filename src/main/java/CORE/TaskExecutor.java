@@ -0,0 +1,109 @@
+package CORE;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link ImageProcessingTask}s on an executor, at most a given number at a
+ * time, and gives their results as {@link CompletableFuture}s. Cancelling a
+ * future cancels its task: a queued task never starts, and a running one stops
+ * at its next check.
+ * The tasks run on virtual threads when the JVM has them (Java 21+), waiting for
+ * a permit to start, so thousands of queued tasks cost next to nothing; on older
+ * JVMs they run on a fixed pool of daemon threads.
+ */
+public class TaskExecutor {
+    private final ExecutorService executor;
+    // Bounds the running tasks when the executor itself doesn't (virtual threads)
+    private final Semaphore permits;
+
+    /**
+     * @param maxRunningTasks the number of tasks which may run at the same time.
+     */
+    public TaskExecutor (int maxRunningTasks) {
+        if (maxRunningTasks < 1) throw new IllegalArgumentException("maxRunningTasks should be at least 1");
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            executor = virtualThreads;
+            permits = new Semaphore(maxRunningTasks);
+        } else {
+            executor = Executors.newFixedThreadPool(maxRunningTasks, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "image-task-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            permits = null;
+        }
+    }
+
+    /**
+     * Runs the tasks on the given executor, which bounds them by itself.
+     */
+    public TaskExecutor (ExecutorService executor) {
+        this.executor = executor;
+        this.permits = null;
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @return a future completed with the task once it is finished, cancelled if the
+     * task was cancelled, or completed exceptionally if it failed.
+     */
+    public <T extends ImageProcessingTask> CompletableFuture<T> submit (final T task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel (boolean mayInterruptIfRunning) {
+                task.cancel();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        executor.execute(new Runnable() {
+            @Override
+            public void run () {
+                if (future.isDone()) return;
+                try {
+                    if (permits != null) permits.acquire();
+                } catch (InterruptedException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    if (task.isCancelled()) future.cancel(false);
+                    else {
+                        task.run();
+                        future.complete(task);
+                    }
+                } catch (CancellationException e) {
+                    future.cancel(false);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    if (permits != null) permits.release();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Stops accepting tasks; the queued ones still run.
+     */
+    public void shutdown () {
+        executor.shutdown();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor(), if this JVM has it
+    private static ExecutorService newVirtualThreadExecutor () {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
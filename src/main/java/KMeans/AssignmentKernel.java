@@ -0,0 +1,121 @@
+package KMeans;
+
+/**
+ * Assigns pixels to their nearest centroid under {@link Cluster}'s distance
+ * (the L1 distance divided by three, the first centroid winning ties), with
+ * the centroids kept as one array per channel.
+ * The pixels are taken by blocks: a block is unpacked into red, green and blue
+ * arrays, then every centroid is compared to the whole block in a loop of
+ * plain int arithmetic, where the running minimum is kept with masks instead
+ * of branches. HotSpot's C2 compiles such loops to SIMD instructions (the
+ * division by three is a multiplication and a shift, exact for L1 distances
+ * up to 765). {@link #nearest(int)} is the pixel by pixel version, giving the
+ * same labels.
+ */
+public final class AssignmentKernel {
+    // The pixels compared to the centroids at a time
+    private static final int BLOCK = 256;
+    // x / 3 == (x * THIRD) >>> 16 for 0 <= x <= 765
+    private static final int THIRD = 21846;
+
+    private final int[] reds;
+    private final int[] greens;
+    private final int[] blues;
+
+    /**
+     * @param centroids the centroids, packed as RGB colors and indexed by cluster id.
+     */
+    public AssignmentKernel (int[] centroids) {
+        int count = centroids.length;
+        reds = new int[count];
+        greens = new int[count];
+        blues = new int[count];
+        for (int i = 0; i < count; i++) {
+            reds[i] = centroids[i] >> 16 & 0xFF;
+            greens[i] = centroids[i] >> 8 & 0xFF;
+            blues[i] = centroids[i] & 0xFF;
+        }
+    }
+
+    static AssignmentKernel of (Cluster[] clusters) {
+        int[] centroids = new int[clusters.length];
+        for (Cluster cluster : clusters)
+            centroids[cluster.getId()] = cluster.centroid();
+        return new AssignmentKernel(centroids);
+    }
+
+    /**
+     * Labels the pixels [from, to) with the index of their nearest centroid, by blocks.
+     *
+     * @return the number of labels that changed.
+     */
+    public int assign (int[] pixels, int from, int to, int[] labels) {
+        int[] red = new int[BLOCK];
+        int[] green = new int[BLOCK];
+        int[] blue = new int[BLOCK];
+        int[] best = new int[BLOCK];
+        int[] bestIndex = new int[BLOCK];
+        int changed = 0;
+        for (int start = from; start < to; start += BLOCK) {
+            int n = Math.min(BLOCK, to - start);
+            for (int j = 0; j < n; j++) {
+                int pixel = pixels[start + j];
+                red[j] = pixel >> 16 & 0xFF;
+                green[j] = pixel >> 8 & 0xFF;
+                blue[j] = pixel & 0xFF;
+                best[j] = Integer.MAX_VALUE;
+                bestIndex[j] = 0;
+            }
+            for (int k = 0; k < reds.length; k++) {
+                int r = reds[k], g = greens[k], b = blues[k];
+                for (int j = 0; j < n; j++) {
+                    int distance = (Math.abs(red[j] - r) + Math.abs(green[j] - g) + Math.abs(blue[j] - b)) * THIRD >>> 16;
+                    // all ones if this centroid is strictly nearer, so ties keep the first one
+                    int nearer = (distance - best[j]) >> 31;
+                    best[j] = distance & nearer | best[j] & ~nearer;
+                    bestIndex[j] = k & nearer | bestIndex[j] & ~nearer;
+                }
+            }
+            for (int j = 0; j < n; j++)
+                if (labels[start + j] != bestIndex[j]) {
+                    labels[start + j] = bestIndex[j];
+                    changed++;
+                }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the index of the nearest centroid of one pixel.
+     */
+    public int nearest (int rgb) {
+        int red = rgb >> 16 & 0xFF, green = rgb >> 8 & 0xFF, blue = rgb & 0xFF;
+        int index = 0;
+        int min = Integer.MAX_VALUE;
+        for (int k = 0; k < reds.length; k++) {
+            int distance = (Math.abs(red - reds[k]) + Math.abs(green - greens[k]) + Math.abs(blue - blues[k])) / 3;
+            if (distance < min) {
+                min = distance;
+                index = k;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Labels the pixels [from, to) pixel by pixel, with {@link #nearest(int)}.
+     *
+     * @return the number of labels that changed.
+     */
+    public int assignScalar (int[] pixels, int from, int to, int[] labels) {
+        int changed = 0;
+        for (int i = from; i < to; i++) {
+            int index = nearest(pixels[i]);
+            if (labels[i] != index) {
+                labels[i] = index;
+                changed++;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,164 @@
+package KMeans;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.Vector;
+
+/**
+ * A TYPE_INT_RGB-like {@link RenderedImage} whose pixels are produced on
+ * demand, one band of full-width rows at a time. Image writers pull the rows
+ * they encode through {@link #getData(Rectangle)}, so a result can be encoded
+ * while it is being computed, holding only the current band in memory.
+ */
+public abstract class BandedImage implements RenderedImage {
+    private static final int[] RGB_MASKS = {0x00FF0000, 0x0000FF00, 0x000000FF};
+
+    private final int width;
+    private final int height;
+    private final int bandHeight;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+    // The last computed band, image writers usually ask for the same band many times
+    private int cachedBand = -1;
+    private Raster cachedRaster;
+
+    protected BandedImage (int width, int height, int bandHeight) {
+        this.width = width;
+        this.height = height;
+        this.bandHeight = Math.min(bandHeight, height);
+        colorModel = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+        sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, this.bandHeight, RGB_MASKS);
+    }
+
+    /**
+     * Computes the packed RGB pixels of the rows [y, y + rgb.length / width).
+     */
+    protected abstract void computeBand (int y, int[] rgb);
+
+    @Override
+    public synchronized Raster getTile (int tileX, int tileY) {
+        if (tileY != cachedBand) {
+            int y = tileY * bandHeight;
+            int rows = Math.min(bandHeight, height - y);
+            int[] rgb = new int[width * rows];
+            computeBand(y, rgb);
+            DataBufferInt dataBuffer = new DataBufferInt(rgb, rgb.length);
+            cachedRaster = Raster.createPackedRaster(dataBuffer, width, rows, width, RGB_MASKS, new Point(0, y));
+            cachedBand = tileY;
+        }
+        return cachedRaster;
+    }
+
+    @Override
+    public Raster getData () {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getData (Rectangle rect) {
+        WritableRaster raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, rect.width, rect.height,
+                RGB_MASKS, new Point(rect.x, rect.y));
+        return copyData(raster);
+    }
+
+    @Override
+    public WritableRaster copyData (WritableRaster raster) {
+        Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty()) return raster;
+        int firstBand = bounds.y / bandHeight;
+        int lastBand = (bounds.y + bounds.height - 1) / bandHeight;
+        for (int band = firstBand; band <= lastBand; band++) {
+            Raster tile = getTile(0, band);
+            Rectangle part = tile.getBounds().intersection(bounds);
+            // the child keeps the image coordinates, they give the destination
+            raster.setDataElements(0, 0,
+                    tile.createChild(part.x, part.y, part.width, part.height, part.x, part.y, null));
+        }
+        return raster;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources () {
+        return null;
+    }
+
+    @Override
+    public Object getProperty (String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames () {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel () {
+        return colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel () {
+        return sampleModel;
+    }
+
+    @Override
+    public int getWidth () {
+        return width;
+    }
+
+    @Override
+    public int getHeight () {
+        return height;
+    }
+
+    @Override
+    public int getMinX () {
+        return 0;
+    }
+
+    @Override
+    public int getMinY () {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles () {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles () {
+        return (height + bandHeight - 1) / bandHeight;
+    }
+
+    @Override
+    public int getMinTileX () {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY () {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth () {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight () {
+        return bandHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset () {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset () {
+        return 0;
+    }
+}
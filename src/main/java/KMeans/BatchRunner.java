@@ -0,0 +1,289 @@
+package KMeans;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Segments many images in one JVM, as a pipeline of three stages: decoding,
+ * clustering and PNG encoding. Each stage has its own thread pool, and the
+ * stages are linked by bounded queues, so a fast stage blocks (instead of
+ * piling up decoded images) when the next one can't keep up, and the three
+ * stages overlap on different images.
+ */
+public class BatchRunner {
+    // Marks the end of the images on a queue
+    private static final Job END = new Job(null, null, null);
+
+    private final KMeans settings;
+    private final int clusterCount;
+    private final int mode;
+    private int decoders;
+    private int workers;
+    private int encoders;
+    private int queueSize;
+
+    /**
+     * @param settings the seeding and stopping rules of the workers' KMeans.
+     */
+    public BatchRunner (KMeans settings, int clusterCount, int mode) {
+        if (mode == KMeans.MODE_MINIBATCH)
+            throw new IllegalArgumentException("MODE_MINIBATCH streams single images, it can't be batched");
+        this.settings = settings;
+        this.clusterCount = clusterCount;
+        this.mode = mode;
+        int cores = Runtime.getRuntime().availableProcessors();
+        decoders = Math.max(1, cores / 4);
+        workers = cores;
+        encoders = Math.max(1, cores / 4);
+        queueSize = 2 * cores;
+    }
+
+    /**
+     * Sets the number of threads of the decoding, clustering and encoding stages.
+     */
+    public void setThreads (int decoders, int workers, int encoders) {
+        if (decoders < 1 || workers < 1 || encoders < 1)
+            throw new IllegalArgumentException("Every stage needs at least one thread");
+        this.decoders = decoders;
+        this.workers = workers;
+        this.encoders = encoders;
+    }
+
+    /**
+     * Sets how many images may wait between two stages.
+     */
+    public void setQueueSize (int queueSize) {
+        if (queueSize < 1) throw new IllegalArgumentException("queueSize should be at least 1");
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Lists the images to segment: the files of a directory which have the
+     * suffix of an image format ImageIO reads, or the paths (one per line) of a
+     * list file.
+     */
+    public static List<File> listInputs (String path) throws IOException {
+        File file = new File(path);
+        if (!file.exists()) throw new FileNotFoundException("Err! file [" + path + "] not found!");
+        List<File> inputs = new ArrayList<>();
+        if (file.isDirectory()) {
+            // the other files (README, .DS_Store...) are not images to fail on
+            Set<String> suffixes = new HashSet<>();
+            for (String suffix : ImageIO.getReaderFileSuffixes())
+                suffixes.add(suffix.toLowerCase(Locale.ROOT));
+            File[] files = file.listFiles();
+            Arrays.sort(files);
+            for (File f : files)
+                if (f.isFile() && suffixes.contains(suffix(f))) inputs.add(f);
+        } else {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+                if (!line.trim().isEmpty()) inputs.add(new File(line.trim()));
+        }
+        return inputs;
+    }
+
+    /**
+     * Segments every input into a PNG of the same name in the output directory.
+     * Inputs sharing a name once their extension is dropped (e.g. a.jpg and
+     * a.png) get a -2, -3... suffix after the first, so that none overwrites
+     * another. An image failing at any stage with an Exception, or running out
+     * of memory, is counted and skipped, and the others go on; any other Error
+     * stops the batch and is thrown once the stages are stopped.
+     *
+     * @return the number of images that failed.
+     */
+    public int run (final List<File> inputs, final File outputDir) throws IOException, InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new IOException("Err! Can't create directory [" + outputDir + "]!");
+        long start = System.currentTimeMillis();
+        final List<File> outputs = outputFiles(inputs, outputDir);
+        final BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Job> clustered = new ArrayBlockingQueue<>(queueSize);
+        final AtomicInteger nextInput = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        // The last thread out of a stage tells the next stage that it's over
+        final AtomicInteger decodersLeft = new AtomicInteger(decoders);
+        final AtomicInteger workersLeft = new AtomicInteger(workers);
+
+        final ExecutorService decodePool = Executors.newFixedThreadPool(decoders, named("decoder"));
+        final ExecutorService clusterPool = Executors.newFixedThreadPool(workers, named("cluster"));
+        final ExecutorService encodePool = Executors.newFixedThreadPool(encoders, named("encoder"));
+        final List<ExecutorService> pools = Arrays.asList(decodePool, clusterPool, encodePool);
+        final AtomicReference<Error> fatal = new AtomicReference<>();
+        for (int t = 0; t < decoders; t++) {
+            decodePool.execute(new Stage(pools, fatal) {
+                @Override
+                void work () throws InterruptedException {
+                    try {
+                        for (int i; (i = nextInput.getAndIncrement()) < inputs.size(); ) {
+                            File input = inputs.get(i);
+                            BufferedImage image;
+                            try {
+                                image = ImageIO.read(input);
+                                if (image == null) throw new IOException("no reader for this format");
+                            } catch (Exception | OutOfMemoryError e) {
+                                fail(failed, input, e);
+                                continue;
+                            }
+                            decoded.put(new Job(input, outputs.get(i), image));
+                        }
+                    } finally {
+                        if (decodersLeft.decrementAndGet() == 0)
+                            for (int w = 0; w < workers; w++) decoded.put(END);
+                    }
+                }
+            });
+        }
+        for (int t = 0; t < workers; t++) {
+            clusterPool.execute(new Stage(pools, fatal) {
+                @Override
+                void work () throws InterruptedException {
+                    // A KMeans per thread, it keeps the clusters of the image it works on
+                    KMeans kMeans = settings.copy();
+                    kMeans.setVerbose(false);
+                    try {
+                        for (Job job; (job = decoded.take()) != END; ) {
+                            BufferedImage result;
+                            try {
+                                result = kMeans.calculate(job.image, clusterCount, mode);
+                            } catch (Exception | OutOfMemoryError e) {
+                                fail(failed, job.input, e);
+                                continue;
+                            }
+                            clustered.put(new Job(job.input, job.output, result));
+                        }
+                    } finally {
+                        if (workersLeft.decrementAndGet() == 0)
+                            for (int e = 0; e < encoders; e++) clustered.put(END);
+                    }
+                }
+            });
+        }
+        for (int t = 0; t < encoders; t++) {
+            encodePool.execute(new Stage(pools, fatal) {
+                @Override
+                void work () throws InterruptedException {
+                    for (Job job; (job = clustered.take()) != END; ) {
+                        try {
+                            if (IndexedPngWriter.canWrite(job.image)) IndexedPngWriter.write(job.image, job.output);
+                            else if (!ImageIO.write(job.image, "png", job.output)) throw new IOException("no PNG writer");
+                        } catch (Exception | OutOfMemoryError e) {
+                            fail(failed, job.input, e);
+                        }
+                    }
+                }
+            });
+        }
+        for (ExecutorService pool : pools)
+            pool.shutdown();
+        for (ExecutorService pool : pools)
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (fatal.get() != null) throw fatal.get();
+
+        long end = System.currentTimeMillis();
+        double seconds = Math.max(1, end - start) / 1000.0;
+        System.out.printf("DONE in %dms !  Segmented %d images (%d failed), %.2f images/s.%n",
+                (end - start), inputs.size() - failed.get(), failed.get(), (inputs.size() - failed.get()) / seconds);
+        return failed.get();
+    }
+
+    private static void fail (AtomicInteger failed, File input, Throwable e) {
+        failed.incrementAndGet();
+        System.err.println(e.toString() + " Image '" + input + "' skipped.");
+    }
+
+    /*
+     * The output of every input, in order. Names are compared ignoring case,
+     * as some file systems do.
+     */
+    private static List<File> outputFiles (List<File> inputs, File outputDir) {
+        List<File> outputs = new ArrayList<>(inputs.size());
+        Set<String> taken = new HashSet<>();
+        for (File input : inputs) {
+            String name = baseName(input);
+            for (int n = 2; !taken.add(name.toLowerCase(Locale.ROOT)); n++)
+                name = baseName(input) + "-" + n;
+            if (!name.equals(baseName(input)))
+                System.err.println("Image '" + input + "' saved as " + name + ".png, its name is taken.");
+            outputs.add(new File(outputDir, name + ".png"));
+        }
+        return outputs;
+    }
+
+    // The lower-case suffix of a file name, or "" if it has none
+    private static String suffix (File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static String baseName (File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static ThreadFactory named (final String stage) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread (Runnable r) {
+                return new Thread(r, stage + "-" + count.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * An image going through the pipeline: decoded, then clustered.
+     */
+    private static class Job {
+        final File input;
+        final File output;
+        final BufferedImage image;
+
+        Job (File input, File output, BufferedImage image) {
+            this.input = input;
+            this.output = output;
+            this.image = image;
+        }
+    }
+
+    /**
+     * The loop of a stage's thread. Interrupting it drops the batch, and an
+     * Error it lets through stops every stage.
+     */
+    private abstract static class Stage implements Runnable {
+        private final List<ExecutorService> pools;
+        private final AtomicReference<Error> fatal;
+
+        Stage (List<ExecutorService> pools, AtomicReference<Error> fatal) {
+            this.pools = pools;
+            this.fatal = fatal;
+        }
+
+        abstract void work () throws InterruptedException;
+
+        @Override
+        public void run () {
+            try {
+                work();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Error e) {
+                // run() throws the first one once every stage is stopped
+                fatal.compareAndSet(null, e);
+                for (ExecutorService pool : pools)
+                    pool.shutdownNow();
+            }
+        }
+    }
+}
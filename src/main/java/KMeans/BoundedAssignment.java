@@ -0,0 +1,127 @@
+package KMeans;
+
+/**
+ * Hamerly-style accelerated assignment step for MODE_ACCELERATED.
+ * For every pixel we keep an upper bound of the L1 distance to its own
+ * cluster center and a lower bound of the L1 distance to every other center.
+ * When the centers move, the bounds are loosened by how far they moved; as
+ * long as the bounds prove that the own cluster is still strictly the closest
+ * one under {@link Cluster#distance(int)}, the scan over all the clusters is
+ * skipped. Otherwise the pixel falls back to {@link Cluster#nearest}, so the
+ * assignments are the same as the brute force MODE_ITERATIVE ones.
+ */
+class BoundedAssignment {
+    // A lower bound that never lets a pixel skip, for lone clusters
+    private static final int FAR = Integer.MAX_VALUE / 2;
+
+    private final int[] pixels;
+    private final int[] upper;
+    private final int[] lower;
+    // the centers during the previous loop, to find how far they moved
+    private int[] previous;
+
+    BoundedAssignment (int[] pixels) {
+        this.pixels = pixels;
+        upper = new int[pixels.length];
+        lower = new int[pixels.length];
+    }
+
+    /**
+     * Runs one loop: assigns the pixels, then replaces the clusters' colors
+     * with the means of their pixels.
+     *
+     * @return the number of pixels that moved to another cluster.
+     */
+    int assign (Cluster[] clusters, int[] cLookupTable) {
+        int k = clusters.length;
+        int[] centers = new int[k];
+        for (int j = 0; j < k; j++)
+            centers[j] = clusters[j].centroid();
+        // How far the centers moved since the previous loop
+        int[] drift = new int[k];
+        int maxDrift = 0, secondDrift = 0, maxDriftId = -1;
+        if (previous != null) {
+            for (int j = 0; j < k; j++) {
+                drift[j] = Cluster.l1(previous[j], centers[j]);
+                if (drift[j] > maxDrift) {
+                    secondDrift = maxDrift;
+                    maxDrift = drift[j];
+                    maxDriftId = j;
+                } else if (drift[j] > secondDrift) secondDrift = drift[j];
+            }
+        }
+        previous = centers;
+        // The distance from each center to the closest other one
+        int[] separation = new int[k];
+        for (int j = 0; j < k; j++) {
+            separation[j] = FAR;
+            for (int j2 = 0; j2 < k; j2++)
+                if (j2 != j) separation[j] = Math.min(separation[j], Cluster.l1(centers[j], centers[j2]));
+        }
+
+        int changed = 0;
+        long[] reds = new long[k];
+        long[] greens = new long[k];
+        long[] blues = new long[k];
+        int[] counts = new int[k];
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int clusterId = cLookupTable[i];
+            boolean settled = false;
+            if (clusterId >= 0) {
+                int u = upper[i] + drift[clusterId];
+                int l = lower[i] - (clusterId == maxDriftId ? secondDrift : maxDrift);
+                // the rounded distance to the own center is strictly the smallest one?
+                settled = u / 3 < Math.max(l, separation[clusterId] - u) / 3;
+                if (!settled) {
+                    u = Cluster.l1(centers[clusterId], pixel);
+                    settled = u / 3 < Math.max(l, separation[clusterId] - u) / 3;
+                }
+                upper[i] = u;
+                lower[i] = l;
+            }
+            if (!settled) {
+                int nearest = scan(centers, pixel, i);
+                if (nearest != clusterId) {
+                    cLookupTable[i] = clusterId = nearest;
+                    changed++;
+                }
+            }
+            reds[clusterId] += pixel >> 16 & 0x000000FF;
+            greens[clusterId] += pixel >> 8 & 0x000000FF;
+            blues[clusterId] += pixel & 0x000000FF;
+            counts[clusterId]++;
+        }
+        for (Cluster cluster : clusters) {
+            int id = cluster.getId();
+            cluster.clear();
+            cluster.addPixels(reds[id], greens[id], blues[id], counts[id]);
+        }
+        return changed;
+    }
+
+    /**
+     * The full scan: picks the cluster as Cluster.nearest does and resets the
+     * pixel's bounds to the exact distances.
+     */
+    private int scan (int[] centers, int pixel, int i) {
+        int nearest = -1, min = Integer.MAX_VALUE;
+        // the two smallest L1 distances, for the lower bound
+        int closest = -1, l1Min = FAR, l1Second = FAR;
+        for (int j = 0; j < centers.length; j++) {
+            int d = Cluster.l1(centers[j], pixel);
+            if (d / 3 < min) {
+                min = d / 3;
+                nearest = j;
+            }
+            if (d < l1Min) {
+                l1Second = l1Min;
+                l1Min = d;
+                closest = j;
+            } else if (d < l1Second) l1Second = d;
+        }
+        upper[i] = Cluster.l1(centers[nearest], pixel);
+        lower[i] = closest == nearest ? l1Second : l1Min;
+        return nearest;
+    }
+}
@@ -6,9 +6,10 @@ class Cluster {
     private int red;
     private int green;
     private int blue;
-    private int reds;
-    private int greens;
-    private int blues;
+    // The color sums, which outgrow an int past 8M pixels of a bright cluster
+    private long reds;
+    private long greens;
+    private long blues;
 
     public Cluster (int id, int rgb) {
         int r = rgb >> 16 & 0x000000FF;
@@ -36,10 +37,14 @@ class Cluster {
         return id;
     }
 
+    int getPixelCount () {
+        return pixelCount;
+    }
+
     int getRGB () {
-        int r = reds / pixelCount;
-        int g = greens / pixelCount;
-        int b = blues / pixelCount;
+        int r = (int) (reds / pixelCount);
+        int g = (int) (greens / pixelCount);
+        int b = (int) (blues / pixelCount);
         return 0xff000000 | r << 16 | g << 8 | b;
     }
 
@@ -52,9 +57,20 @@ class Cluster {
         greens += g;
         blues += b;
         pixelCount++;
-        red = reds / pixelCount;
-        green = greens / pixelCount;
-        blue = blues / pixelCount;
+        red = (int) (reds / pixelCount);
+        green = (int) (greens / pixelCount);
+        blue = (int) (blues / pixelCount);
+    }
+
+    void addPixels (long reds, long greens, long blues, int count) {
+        if (count == 0) return;
+        this.reds += reds;
+        this.greens += greens;
+        this.blues += blues;
+        pixelCount += count;
+        red = (int) (this.reds / pixelCount);
+        green = (int) (this.greens / pixelCount);
+        blue = (int) (this.blues / pixelCount);
     }
 
     void removePixel (int color) {
@@ -66,9 +82,16 @@ class Cluster {
         greens -= g;
         blues -= b;
         pixelCount--;
-        red = reds / pixelCount;
-        green = greens / pixelCount;
-        blue = blues / pixelCount;
+        red = (int) (reds / pixelCount);
+        green = (int) (greens / pixelCount);
+        blue = (int) (blues / pixelCount);
+    }
+
+    /**
+     * The current center, packed as an RGB color.
+     */
+    int centroid () {
+        return red << 16 | green << 8 | blue;
     }
 
     int distance (int color) {
@@ -83,4 +106,32 @@ class Cluster {
 //            return d;
         return (rx + gx + bx) / 3;
     }
+
+    /**
+     * The L1 distance between two packed RGB colors; {@link #distance(int)} is
+     * this distance to the center divided by three. Unlike the rounded one, it
+     * satisfies the triangle inequality.
+     */
+    static int l1 (int color1, int color2) {
+        return Math.abs((color1 >> 16 & 0x000000FF) - (color2 >> 16 & 0x000000FF))
+                + Math.abs((color1 >> 8 & 0x000000FF) - (color2 >> 8 & 0x000000FF))
+                + Math.abs((color1 & 0x000000FF) - (color2 & 0x000000FF));
+    }
+
+    /**
+     * Returns the id of the cluster closest to the color; on ties the first
+     * cluster of the array wins.
+     */
+    static int nearest (Cluster[] clusters, int color) {
+        int cluster = -1;
+        int min = Integer.MAX_VALUE;
+        for (Cluster cluster1 : clusters) {
+            int distance = cluster1.distance(color);
+            if (distance < min) {
+                min = distance;
+                cluster = cluster1.getId();
+            }
+        }
+        return cluster;
+    }
 }
@@ -0,0 +1,129 @@
+package KMeans;
+
+import java.util.Arrays;
+
+/**
+ * The distinct colors of an image with their pixel counts, used by
+ * MODE_HISTOGRAM: the KMeans loops run over (color, count) pairs instead of
+ * over pixels, and the labels are mapped back to the pixels only once.
+ * Colors are kept in a primitive open-addressing table keyed by the 24-bit
+ * RGB value, the alpha byte is ignored as it is by {@link Cluster}.
+ */
+class ColorHistogram {
+    private static final int EMPTY = -1;
+    private static final int MIX = 0x9E3779B9;
+
+    // open-addressing table: RGB key -> index into colors/counts
+    private int[] keys;
+    private int[] slots;
+    private int mask;
+    // the distinct colors, in order of first appearance
+    private int[] colors;
+    private int[] counts;
+    private int size;
+    // the cluster of each distinct color
+    private int[] labels;
+
+    ColorHistogram (int[] pixels) {
+        int capacity = 1024;
+        keys = new int[capacity];
+        slots = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        colors = new int[capacity / 2];
+        counts = new int[capacity / 2];
+        for (int pixel : pixels) {
+            // resolve the index first, inserting may grow the counts array
+            int index = indexOf(pixel & 0x00FFFFFF, true);
+            counts[index]++;
+        }
+        labels = new int[size];
+        Arrays.fill(labels, -1);
+    }
+
+    /**
+     * @return the number of distinct colors.
+     */
+    int size () {
+        return size;
+    }
+
+    /**
+     * Runs one weighted loop: assigns every distinct color to its closest
+     * cluster, then replaces the clusters' colors with the weighted means.
+     * Pixels sharing a color share a cluster, so this is the same loop as the
+     * pixel-wise MODE_ITERATIVE one.
+     *
+     * @return the number of pixels that moved to another cluster.
+     */
+    int assign (Cluster[] clusters) {
+        int changed = 0;
+        long[] reds = new long[clusters.length];
+        long[] greens = new long[clusters.length];
+        long[] blues = new long[clusters.length];
+        int[] pixelCounts = new int[clusters.length];
+        for (int i = 0; i < size; i++) {
+            int color = colors[i];
+            int count = counts[i];
+            int clusterId = Cluster.nearest(clusters, color);
+            if (labels[i] != clusterId) {
+                labels[i] = clusterId;
+                changed += count;
+            }
+            reds[clusterId] += (long) count * (color >> 16 & 0x000000FF);
+            greens[clusterId] += (long) count * (color >> 8 & 0x000000FF);
+            blues[clusterId] += (long) count * (color & 0x000000FF);
+            pixelCounts[clusterId] += count;
+        }
+        for (Cluster cluster : clusters) {
+            int id = cluster.getId();
+            cluster.clear();
+            cluster.addPixels(reds[id], greens[id], blues[id], pixelCounts[id]);
+        }
+        return changed;
+    }
+
+    /**
+     * Writes the cluster of every pixel into the lookup table.
+     */
+    void label (int[] pixels, int[] cLookupTable) {
+        for (int i = 0; i < pixels.length; i++)
+            cLookupTable[i] = labels[indexOf(pixels[i] & 0x00FFFFFF, false)];
+    }
+
+    private int indexOf (int key, boolean insert) {
+        int slot = (key * MIX) >>> 7 & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) return slots[slot];
+            slot = (slot + 1) & mask;
+        }
+        if (!insert) return -1;
+        if (size == colors.length) {
+            grow();
+            return indexOf(key, true);
+        }
+        keys[slot] = key;
+        slots[slot] = size;
+        colors[size] = key;
+        return size++;
+    }
+
+    // Doubles the table, keeping the load factor at most one half
+    private void grow () {
+        int[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new int[oldKeys.length * 2];
+        slots = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = (oldKeys[i] * MIX) >>> 7 & mask;
+            while (keys[slot] != EMPTY) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            slots[slot] = oldSlots[i];
+        }
+        colors = Arrays.copyOf(colors, keys.length / 2);
+        counts = Arrays.copyOf(counts, keys.length / 2);
+    }
+}
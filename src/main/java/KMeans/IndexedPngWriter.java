@@ -0,0 +1,165 @@
+package KMeans;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes TYPE_BYTE_INDEXED images as palette PNGs straight from their byte
+ * raster. Every row goes with filter Up (the difference with the row above),
+ * which suits the large flat areas of cluster ids, instead of trying all five
+ * filters on every row as the ImageIO writer does. The alphas of the palette
+ * (e.g. of an indexed image read from a file) go in a tRNS chunk.
+ */
+class IndexedPngWriter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    // Flush an IDAT chunk every this many bytes
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private IndexedPngWriter () {
+    }
+
+    /**
+     * @return whether the image is an 8 bit indexed image backed by a plain byte array.
+     */
+    static boolean canWrite (RenderedImage image) {
+        if (!(image instanceof BufferedImage)) return false;
+        BufferedImage buffered = (BufferedImage) image;
+        return buffered.getType() == BufferedImage.TYPE_BYTE_INDEXED
+                && buffered.getRaster().getParent() == null
+                && buffered.getSampleModel() instanceof PixelInterleavedSampleModel
+                && ((PixelInterleavedSampleModel) buffered.getSampleModel()).getPixelStride() == 1;
+    }
+
+    static void write (BufferedImage image, File target) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(target), CHUNK_SIZE)) {
+            write(image, output);
+        }
+    }
+
+    static void write (BufferedImage image, OutputStream output) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+        WritableRaster raster = image.getRaster();
+        PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+
+        output.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8);      // bit depth
+        data.writeByte(3);      // color type: palette
+        data.writeByte(0);      // compression: deflate
+        data.writeByte(0);      // filter method: adaptive
+        data.writeByte(0);      // no interlace
+        writeChunk(output, "IHDR", header.toByteArray(), header.size());
+
+        int size = colorModel.getMapSize();
+        byte[] palette = new byte[size * 3];
+        for (int i = 0; i < size; i++) {
+            int rgb = colorModel.getRGB(i);
+            palette[i * 3] = (byte) (rgb >> 16);
+            palette[i * 3 + 1] = (byte) (rgb >> 8);
+            palette[i * 3 + 2] = (byte) rgb;
+        }
+        writeChunk(output, "PLTE", palette, palette.length);
+        // the alphas of the palette entries, up to the last one which is not opaque
+        byte[] alphas = new byte[size];
+        int alphaCount = 0;
+        for (int i = 0; i < size; i++) {
+            alphas[i] = (byte) colorModel.getAlpha(i);
+            if (colorModel.getAlpha(i) != 0xFF) alphaCount = i + 1;
+        }
+        if (alphaCount > 0) writeChunk(output, "tRNS", alphas, alphaCount);
+
+        // the rows go through the deflater into IDAT chunks, each one led by its filter byte
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        IdatStream idat = new IdatStream(output);
+        try (DeflaterOutputStream deflated = new DeflaterOutputStream(idat, deflater, CHUNK_SIZE)) {
+            byte[] pixels = dataBuffer.getData();
+            int stride = sampleModel.getScanlineStride();
+            int offset = dataBuffer.getOffset() + sampleModel.getBandOffsets()[0];
+            byte[] row = new byte[width + 1];
+            // the first row has no row above, which makes it filter None
+            row[0] = 0;
+            System.arraycopy(pixels, offset, row, 1, width);
+            deflated.write(row);
+            row[0] = 2;     // filter Up
+            for (int y = 1; y < height; y++) {
+                int above = offset + (y - 1) * stride;
+                int current = above + stride;
+                for (int x = 0; x < width; x++)
+                    row[x + 1] = (byte) (pixels[current + x] - pixels[above + x]);
+                deflated.write(row);
+            }
+        } finally {
+            deflater.end();
+        }
+        writeChunk(output, "IEND", new byte[0], 0);
+        output.flush();
+    }
+
+    private static void writeChunk (OutputStream output, String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        writeInt(output, length);
+        output.write(name);
+        output.write(data, 0, length);
+        writeInt(output, (int) crc.getValue());
+    }
+
+    private static void writeInt (OutputStream output, int value) throws IOException {
+        output.write(value >>> 24);
+        output.write(value >>> 16);
+        output.write(value >>> 8);
+        output.write(value);
+    }
+
+    /**
+     * Cuts the compressed stream into IDAT chunks; closing it leaves the PNG stream open.
+     */
+    private static final class IdatStream extends OutputStream {
+        private final OutputStream output;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        IdatStream (OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write (int b) throws IOException {
+            if (count == buffer.length) flushChunk();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) flushChunk();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushChunk () throws IOException {
+            if (count > 0) writeChunk(output, "IDAT", buffer, count);
+            count = 0;
+        }
+
+        @Override
+        public void close () throws IOException {
+            flushChunk();
+        }
+    }
+}
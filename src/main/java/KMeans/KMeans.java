@@ -1,21 +1,88 @@
 package KMeans;
 
+import CORE.FlightRecorder;
+import CORE.LabelMapWriter;
+
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 import static KMeans.Utils.loadImage;
+import static KMeans.Utils.openTiled;
 import static KMeans.Utils.saveImage;
 
 public class KMeans {
 
     public static final int MODE_CONTINUOUS = 0x01;
     public static final int MODE_ITERATIVE = 0x02;
-    private static final String USAGE = "\nUsage:\t$ java KMeans  MODE  ClusterCount  /input/path  output/path\n\n" +
-            "ClusterCount:\t0-255\n" +
-            "MODE\t\t:\t-i (interactive) | -c (continuous)\n\n";
+    public static final int MODE_PARALLEL = 0x04;
+    public static final int MODE_HISTOGRAM = 0x08;
+    public static final int MODE_ACCELERATED = 0x10;
+    public static final int MODE_MINIBATCH = 0x20;
+    public static final int MODE_PYRAMID = 0x40;
+    public static final int SEEDING_DIAGONAL = 0x01;
+    public static final int SEEDING_KMEANS_PLUS_PLUS = 0x02;
+    // Whether this JVM has Flight Recorder events
+    static final boolean JFR = FlightRecorder.AVAILABLE;
+    private static final String USAGE = "\nUsage:\t$ java KMeans  [OPTIONS]  MODE  ClusterCount  /input/path  output/path\n" +
+            "\t$ java KMeans  --batch  [OPTIONS]  MODE  ClusterCount  /input/dir|list.txt  output/dir\n\n" +
+            "ClusterCount:\t1-255\n" +
+            "MODE\t\t:\t-i (interactive) | -c (continuous) | -p (parallel interactive)\n" +
+            "\t\t\t| -h (interactive over the color histogram)\n" +
+            "\t\t\t| -a (interactive with bounded distances, same result as -i)\n" +
+            "\t\t\t| -m (mini-batch, streams images larger than the memory)\n" +
+            "\t\t\t| -r (coarse to fine over halved copies of the image)\n" +
+            "OPTIONS\t\t:\t--seeding=kmeans++|diagonal\t(initial clusters, default kmeans++)\n" +
+            "\t\t\t--seed=N\t\t(random seed of kmeans++)\n" +
+            "\t\t\t--max-loops=N\t\t(stop after N loops)\n" +
+            "\t\t\t--min-changed=F\t\t(stop when at most this fraction of the pixels moved)\n" +
+            "\t\t\t--max-shift=N\t\t(stop when no cluster color moved more than N)\n" +
+            "\t\t\t--refine-loops=N\t(most loops of -r on each larger copy, default 2)\n" +
+            "\t\t\t--refine-tolerance=F\t(-r moves on once at most this fraction of the pixels moved, default 0.001)\n" +
+            "\t\t\t--tile-size=N\t\t(size of the tiles read at a time by -m, default 1024)\n" +
+            "\t\t\t--save-palette=FILE\t(save the cluster colors, not with -m or --batch)\n" +
+            "\t\t\t--palette=FILE\t\t(map the pixels to a saved palette instead of clustering)\n" +
+            "\t\t\t--palette-bits=5|6|8\t(bits per channel of the --palette lookup table, default 8)\n" +
+            "\t\t\t--indexed\t\t(save an indexed PNG of the cluster ids, not with -m)\n" +
+            "\t\t\t--save-labels=FILE\t(also save the cluster ids as a label map, not with -m or --batch)\n" +
+            "\t\t\t--batch-threads=D,W,E\t(decoding, clustering and encoding threads of --batch)\n" +
+            "\t\t\t--batch-queue=N\t\t(images waiting between two stages of --batch)\n\n";
 
     private Cluster[] clusters;
+    // Seeding and stopping rules; by default loop until no pixel moves
+    private int seeding = SEEDING_KMEANS_PLUS_PLUS;
+    private long seed = 0x5EED;
+    private int maxLoops = Integer.MAX_VALUE;
+    private double minChangedFraction = 0;
+    private int maxCentroidShift = -1;
+    // The loops and the fraction of moving pixels MODE_PYRAMID accepts on the larger levels
+    private int refineLoops = 2;
+    private double refineTolerance = 0.001;
+    // Tiles read at a time by MODE_MINIBATCH
+    private int tileSize = 1024;
+    // Print the timing of every image
+    private boolean verbose = true;
+    // The colors to map the pixels to instead of clustering, and the palette options
+    private Palette palette;
+    private String palettePath;
+    private String savePalettePath;
+    private String saveLabelsPath;
+    private int paletteBits = 8;
+    // Return TYPE_BYTE_INDEXED images of the cluster ids instead of TYPE_INT_RGB
+    private boolean indexedOutput;
+    // Keep the pixel and label arrays for the next image of the same size
+    private boolean reuseBuffers;
+    private int[] keptPixels;
+    private int[] keptLabels;
+    // Told about every loop; shared with the copies
+    private List<KMeansListener> listeners = new CopyOnWriteArrayList<>();
 
 
     // Constructor
@@ -23,6 +90,23 @@ public class KMeans {
     }
 
     public static void main (String[] args) throws IOException {
+        // Split the --options from the positional args
+        KMeans kMeans = new KMeans();
+        List<String> positional = new ArrayList<>();
+        boolean batch = false;
+        List<String> batchOptions = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--batch")) batch = true;
+            else if (arg.startsWith("--batch-")) batchOptions.add(arg);
+            else if (arg.startsWith("--")) parseOption(kMeans, arg);
+            else positional.add(arg);
+        }
+        if (!batch && !batchOptions.isEmpty()) {
+            System.err.println("Err! " + batchOptions.get(0) + " needs --batch");
+            System.exit(-1);
+        }
+        args = positional.toArray(new String[positional.size()]);
+
         // Check args
         if (args.length != 4) {
             System.out.println(USAGE);
@@ -39,6 +123,21 @@ public class KMeans {
             case "-c":
                 mode = MODE_CONTINUOUS;
                 break;
+            case "-p":
+                mode = MODE_PARALLEL;
+                break;
+            case "-h":
+                mode = MODE_HISTOGRAM;
+                break;
+            case "-a":
+                mode = MODE_ACCELERATED;
+                break;
+            case "-m":
+                mode = MODE_MINIBATCH;
+                break;
+            case "-r":
+                mode = MODE_PYRAMID;
+                break;
             default:
                 System.err.println("Err! Unknown mode ... Using default (MODE_CONTINUOUS)");
                 break;
@@ -50,110 +149,686 @@ public class KMeans {
             System.err.println("Invalid argument [ClusterCount]! Please enter a valid integer value.");
             System.exit(-1);
         }
-        if (!(clusterCount >= 0 && clusterCount < 256)) {
-            System.err.println("ClusterCount should be in the interval 0-255");
+        if (!(clusterCount > 0 && clusterCount < 256)) {
+            System.err.println("ClusterCount should be in the interval 1-255");
             System.exit(-1);
         }
         String src = args[2];   // image.in
         String target = args[3];   // image.out
 
+        if (kMeans.savePalettePath != null && (batch || mode == MODE_MINIBATCH)) {
+            System.err.println("Err! --save-palette needs a single image and another mode than -m");
+            System.exit(-1);
+        }
+        if (kMeans.saveLabelsPath != null && (batch || mode == MODE_MINIBATCH)) {
+            System.err.println("Err! --save-labels needs a single image and another mode than -m");
+            System.exit(-1);
+        }
+        if (kMeans.indexedOutput && mode == MODE_MINIBATCH) {
+            System.err.println("Err! --indexed can't be used with -m");
+            System.exit(-1);
+        }
+        if (kMeans.palettePath != null) {
+            if (mode == MODE_MINIBATCH) {
+                System.err.println("Err! --palette can't be used with -m");
+                System.exit(-1);
+            }
+            Palette palette = Palette.load(new File(kMeans.palettePath));
+            palette.setLookupBits(kMeans.paletteBits);
+            kMeans.setPalette(palette);
+        }
+
+        if (batch) {
+            // every image goes through the decode -> cluster -> encode pipeline
+            BatchRunner runner = new BatchRunner(kMeans, clusterCount, mode);
+            for (String option : batchOptions) parseBatchOption(runner, option);
+            try {
+                int failed = runner.run(BatchRunner.listInputs(src), new File(target));
+                if (failed > 0) System.exit(1);
+            } catch (InterruptedException e) {
+                System.err.println("Err! Interrupted\nExiting");
+                System.exit(-1);
+            }
+            return;
+        }
+
+        if (mode == MODE_MINIBATCH) {
+            // learn the clusters from samples, then label while saving
+            kMeans.calculateMiniBatch(src, target, clusterCount);
+            return;
+        }
+
         // call the function to actually start the clustering
-        BufferedImage clusteredImg = new KMeans().calculate(loadImage(src), clusterCount, mode);
+        BufferedImage clusteredImg;
+        if (kMeans.saveLabelsPath != null) {
+            // keep the cluster ids, to save them before rendering them
+            BufferedImage image = loadImage(src);
+            byte[] labels = kMeans.calculateLabels(image, clusterCount, mode);
+            LabelMapWriter.write(Paths.get(kMeans.saveLabelsPath), labels, image.getWidth(), image.getHeight());
+            clusteredImg = kMeans.renderLabels(labels, image.getWidth(), image.getHeight());
+        } else {
+            clusteredImg = kMeans.calculate(loadImage(src), clusterCount, mode);
+        }
         // save the resulting image
         saveImage(clusteredImg, target);
+        if (kMeans.savePalettePath != null) kMeans.getPalette().save(new File(kMeans.savePalettePath));
+    }
+
+    static void parseOption (KMeans kMeans, String option) {
+        int eq = option.indexOf('=');
+        String name = eq < 0 ? option : option.substring(0, eq);
+        String value = eq < 0 ? "" : option.substring(eq + 1);
+        try {
+            switch (name) {
+                case "--seeding":
+                    if (value.equalsIgnoreCase("kmeans++")) kMeans.setSeeding(SEEDING_KMEANS_PLUS_PLUS);
+                    else if (value.equalsIgnoreCase("diagonal")) kMeans.setSeeding(SEEDING_DIAGONAL);
+                    else throw new IllegalArgumentException("unknown seeding '" + value + "'");
+                    break;
+                case "--seed":
+                    kMeans.setSeed(Long.parseLong(value));
+                    break;
+                case "--max-loops":
+                    kMeans.setMaxLoops(Integer.parseInt(value));
+                    break;
+                case "--min-changed":
+                    kMeans.setMinChangedFraction(Double.parseDouble(value));
+                    break;
+                case "--max-shift":
+                    kMeans.setMaxCentroidShift(Integer.parseInt(value));
+                    break;
+                case "--refine-loops":
+                    kMeans.setRefineLoops(Integer.parseInt(value));
+                    break;
+                case "--refine-tolerance":
+                    kMeans.setRefineTolerance(Double.parseDouble(value));
+                    break;
+                case "--tile-size":
+                    kMeans.setTileSize(Integer.parseInt(value));
+                    break;
+                case "--palette":
+                    kMeans.palettePath = value;
+                    break;
+                case "--save-palette":
+                    kMeans.savePalettePath = value;
+                    break;
+                case "--save-labels":
+                    kMeans.saveLabelsPath = value;
+                    break;
+                case "--indexed":
+                    kMeans.setIndexedOutput(true);
+                    break;
+                case "--palette-bits":
+                    kMeans.paletteBits = Integer.parseInt(value);
+                    if (kMeans.paletteBits != 5 && kMeans.paletteBits != 6 && kMeans.paletteBits != 8)
+                        throw new IllegalArgumentException("expected 5, 6 or 8");
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid option [" + option + "]! " + e.getMessage());
+            System.out.println(USAGE);
+            System.exit(-1);
+        }
+    }
+
+    private static void parseBatchOption (BatchRunner batch, String option) {
+        int eq = option.indexOf('=');
+        String name = eq < 0 ? option : option.substring(0, eq);
+        String value = eq < 0 ? "" : option.substring(eq + 1);
+        try {
+            switch (name) {
+                case "--batch-threads":
+                    String[] threads = value.split(",");
+                    if (threads.length != 3) throw new IllegalArgumentException("expected D,W,E");
+                    batch.setThreads(Integer.parseInt(threads[0]), Integer.parseInt(threads[1]),
+                            Integer.parseInt(threads[2]));
+                    break;
+                case "--batch-queue":
+                    batch.setQueueSize(Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid option [" + option + "]! " + e.getMessage());
+            System.out.println(USAGE);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Returns a new KMeans with the same seeding and stopping rules.
+     */
+    KMeans copy () {
+        KMeans copy = new KMeans();
+        copy.seeding = seeding;
+        copy.seed = seed;
+        copy.maxLoops = maxLoops;
+        copy.minChangedFraction = minChangedFraction;
+        copy.maxCentroidShift = maxCentroidShift;
+        copy.refineLoops = refineLoops;
+        copy.refineTolerance = refineTolerance;
+        copy.tileSize = tileSize;
+        copy.verbose = verbose;
+        copy.listeners = listeners;
+        copy.palette = palette;
+        copy.indexedOutput = indexedOutput;
+        return copy;
+    }
+
+    /**
+     * Keeps the pixel and label arrays of the last image, and clusters the next
+     * image with as many pixels in them instead of allocating new ones. The
+     * results never share these arrays.
+     */
+    void setReuseBuffers (boolean reuseBuffers) {
+        this.reuseBuffers = reuseBuffers;
+        if (!reuseBuffers) keptPixels = keptLabels = null;
+    }
+
+    /**
+     * Adds a listener, told about every loop of this KMeans and of its batch workers.
+     */
+    public void addListener (KMeansListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener (KMeansListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Maps the pixels of the next images to the palette colors instead of clustering
+     * them; null goes back to clustering. The mapping is reported to the listeners
+     * (and to a task) as a single loop, in which every pixel gets its cluster.
+     */
+    public void setPalette (Palette palette) {
+        this.palette = palette;
+    }
+
+    /**
+     * @return the palette set, or else the colors of the last clustered image (null
+     * before the first one).
+     */
+    public Palette getPalette () {
+        if (palette != null) return palette;
+        return clusters == null ? null : Palette.of(clusters);
+    }
+
+    /**
+     * Makes calculate return a TYPE_BYTE_INDEXED image: one byte per pixel
+     * holding its cluster id, with the cluster colors as the color model. It
+     * takes a quarter of the memory of the default TYPE_INT_RGB image, and is
+     * saved as a much smaller palette PNG.
+     */
+    public void setIndexedOutput (boolean indexedOutput) {
+        this.indexedOutput = indexedOutput;
+    }
+
+    /**
+     * Enables or disables printing the timing of every image (enabled by default).
+     */
+    public void setVerbose (boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Sets how the initial clusters are picked: SEEDING_KMEANS_PLUS_PLUS (the
+     * default) or SEEDING_DIAGONAL, which takes the pixels on the diagonal of
+     * the image.
+     */
+    public void setSeeding (int seeding) {
+        this.seeding = seeding;
+    }
+
+    /**
+     * Sets the random seed of the k-means++ seeding; the same seed always
+     * gives the same result on the same image.
+     */
+    public void setSeed (long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Stops after this many loops, even if some pixels still move.
+     */
+    public void setMaxLoops (int maxLoops) {
+        if (maxLoops < 1) throw new IllegalArgumentException("maxLoops should be at least 1");
+        this.maxLoops = maxLoops;
+    }
+
+    /**
+     * Stops once a loop moves at most this fraction (0-1) of the pixels to
+     * another cluster. 0, the default, waits until no pixel moves.
+     */
+    public void setMinChangedFraction (double minChangedFraction) {
+        if (minChangedFraction < 0 || minChangedFraction > 1)
+            throw new IllegalArgumentException("minChangedFraction should be in the interval 0-1");
+        this.minChangedFraction = minChangedFraction;
+    }
+
+    /**
+     * Stops once a loop moves no cluster color by more than this L1 distance
+     * (sum of the red, green and blue differences). Negative, the default,
+     * disables this rule.
+     */
+    public void setMaxCentroidShift (int maxCentroidShift) {
+        this.maxCentroidShift = maxCentroidShift;
+    }
+
+    /**
+     * Sets the most loops MODE_PYRAMID runs on every level but the smallest one,
+     * which converges under the usual stopping rules.
+     */
+    public void setRefineLoops (int refineLoops) {
+        if (refineLoops < 1) throw new IllegalArgumentException("refineLoops should be at least 1");
+        this.refineLoops = refineLoops;
+    }
+
+    /**
+     * MODE_PYRAMID goes on to the next larger level once a loop moves at most
+     * this fraction (0-1) of the pixels; the lower, the closer the result is to
+     * clustering at full resolution.
+     */
+    public void setRefineTolerance (double refineTolerance) {
+        if (refineTolerance < 0 || refineTolerance > 1)
+            throw new IllegalArgumentException("refineTolerance should be in the interval 0-1");
+        this.refineTolerance = refineTolerance;
+    }
+
+    /**
+     * Sets the size of the square tiles MODE_MINIBATCH reads at a time.
+     */
+    public void setTileSize (int tileSize) {
+        if (tileSize < 1) throw new IllegalArgumentException("tileSize should be at least 1");
+        this.tileSize = tileSize;
+    }
+
+    private void calculateMiniBatch (String src, String target, int clusterCount) throws IOException {
+        long start = System.currentTimeMillis();
+        TiledImageReader tiles = openTiled(src, tileSize, tileSize);
+        try {
+            MiniBatchKMeans miniBatch = new MiniBatchKMeans(clusterCount);
+            miniBatch.setSeed(seed);
+            miniBatch.fit(tiles);
+            saveImage(miniBatch.label(tiles), target);
+        } finally {
+            tiles.close();
+        }
+        long end = System.currentTimeMillis();
+        System.out.printf("DONE in %dms !  Clustered to %d clusters, with mini-batches.",
+                (end - start), clusterCount);
     }
 
     public BufferedImage calculate (BufferedImage image, int ClusterCount, int mode) {
+        return calculate(image, ClusterCount, mode, null);
+    }
+
+    /**
+     * Clusters the image, reporting every loop to the task (if not null), which
+     * may stop it.
+     */
+    BufferedImage calculate (BufferedImage image, int ClusterCount, int mode, KMeansTask task) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // a fixed palette needs no clustering
+        if (palette != null) {
+            byte[] labels = mapToPalette(image, task);
+            if (indexedOutput) return PixelBuffer.wrapIndexed(labels, width, height, palette.getColorModel());
+            int[] colors = new int[palette.getSize()];
+            for (int i = 0; i < colors.length; i++)
+                colors[i] = 0xFF000000 | palette.getColor(i);
+            int[] rgb = new int[labels.length];
+            for (int i = 0; i < labels.length; i++)
+                rgb[i] = colors[labels[i] & 0xFF];
+            return PixelBuffer.wrap(rgb, width, height);
+        }
+        int[] cLookupTable = cluster(image, ClusterCount, mode, task);
+        // create result image, straight into its DataBuffer
+        if (indexedOutput)
+            return PixelBuffer.wrapIndexed(labels(cLookupTable), width, height, Palette.of(clusters).getColorModel());
+        return PixelBuffer.wrap(render(cLookupTable), width, height);
+    }
+
+    /**
+     * Clusters the image and returns the cluster id of every pixel, row after
+     * row, without rendering it; {@link #getPalette()} then gives the color of
+     * every id. With a palette set, the ids are its color indices.
+     */
+    public byte[] calculateLabels (BufferedImage image, int ClusterCount, int mode) {
+        if (palette != null) return mapToPalette(image, null);
+        return labels(cluster(image, ClusterCount, mode, null));
+    }
+
+    /**
+     * Maps every pixel to the index of its palette color, in one pass reported as a
+     * single loop.
+     */
+    private byte[] mapToPalette (BufferedImage image, KMeansTask task) {
+        long startNanos = System.nanoTime();
+        byte[] labels = palette.label(image);
+        if (!listeners.isEmpty()) {
+            int[] sizes = new int[palette.getSize()];
+            for (byte label : labels)
+                sizes[label & 0xFF]++;
+            long nanos = System.nanoTime() - startNanos;
+            for (KMeansListener listener : listeners)
+                listener.loopDone(1, nanos, labels.length, 0, sizes);
+        }
+        // every pixel is final after the pass
+        if (task != null) task.loopDone(labels.length);
+        for (KMeansListener listener : listeners)
+            listener.clusteringDone(1, System.nanoTime() - startNanos);
+        return labels;
+    }
+
+    /**
+     * Runs the loops and returns the lookup table of the cluster of every pixel.
+     */
+    private int[] cluster (BufferedImage image, int ClusterCount, int mode, KMeansTask task) {
         // timer.init()
         long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
 
         // Get dimensions
         int width = image.getWidth();
         int height = image.getHeight();
+        // Read the raster once, the loops below only touch the packed pixels
+        int[] pixels = PixelBuffer.read(image, pixelBuffer(width * height));
+        if (mode == MODE_PYRAMID) {
+            int[] cLookupTable = labelBuffer(width * height);
+            int loops = clusterPyramid(new Pyramid(pixels, width, height), ClusterCount, cLookupTable, task);
+            done(start, startNanos, ClusterCount, loops);
+            return cLookupTable;
+        }
 
         // Create Clusters
-        clusters = createClusters(image, ClusterCount);
+        clusters = createClusters(pixels, width, height, ClusterCount);
         // create cluster lookup table
-        int[] cLookupTable = new int[width * height];
+        int[] cLookupTable = labelBuffer(width * height);
         Arrays.fill(cLookupTable, -1);
+        // the distinct colors, when the loops run over the histogram
+        ColorHistogram histogram = mode == MODE_HISTOGRAM ? new ColorHistogram(pixels) : null;
+        // the distance bounds, when the loops skip the pixels that can't move
+        BoundedAssignment bounded = mode == MODE_ACCELERATED ? new BoundedAssignment(pixels) : null;
 
-        // at first loop all pixels will move their clusters
-        boolean pixelChangedCluster = true;
+        int[] centroids = new int[clusters.length];
 
-        // loop until all clusters are stable!
+        // loop until all clusters are stable, or one of the stopping rules says so
         int loops = 0;
-        while (pixelChangedCluster) {
-            pixelChangedCluster = false;
+        boolean stop = false;
+        while (!stop) {
+            for (Cluster cluster : clusters)
+                centroids[cluster.getId()] = cluster.centroid();
+            long loopStart = System.nanoTime();
+            // null unless a JFR recording wants the loops
+            Object event = JFR ? KMeansLoopEvent.create() : null;
+            int pixelsChangedCluster = loop(mode, pixels, width, height, cLookupTable, histogram, bounded);
             loops++;
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    int pixel = image.getRGB(x, y);
-                    Cluster cluster = findMinimalCluster(pixel);
-                    if (cLookupTable[width * y + x] != cluster.getId()) {
-                        // cluster changed
-                        if (mode == MODE_CONTINUOUS) {
-                            if (cLookupTable[width * y + x] != -1) {
-                                // remove from possible previousthen
-                                // cluster
-                                clusters[cLookupTable[width * y + x]].removePixel(pixel);
-                            }
-
-                            cluster.addPixel(pixel);
-                        }
-
-                        pixelChangedCluster = true;
-
-
-                        cLookupTable[width * y + x] = cluster.getId();
-                    }
-                }
-            }
-            if (mode == MODE_ITERATIVE) {
-                // update clusters
-                for (Cluster cluster : clusters) {
-                    cluster.clear();
-                }
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++) {
-                        int clusterId = cLookupTable[width * y + x];
-                        // add pixels to cluster
-                        clusters[clusterId].addPixel(image.getRGB(x, y));
-                    }
-                }
-            }
-
+            if (task != null) task.loopDone(pixels.length - pixelsChangedCluster);
+            stop = endLoop(clusters, centroids, loops, loopStart, event, mode, pixels.length, pixelsChangedCluster);
         }   // EndWhile
+        if (mode == MODE_HISTOGRAM) histogram.label(pixels, cLookupTable);
+        done(start, startNanos, ClusterCount, loops);
+        return cLookupTable;
+    }
+
+    /**
+     * Clusters the smallest level of the pyramid under the usual stopping rules,
+     * then refines the clusters on every larger level, starting from the labels
+     * of the level below: at most refineLoops loops, until at most refineTolerance
+     * of the pixels move.
+     *
+     * @return the number of loops over all the levels.
+     */
+    private int clusterPyramid (Pyramid pyramid, int ClusterCount, int[] cLookupTable, KMeansTask task) {
+        int top = pyramid.getLevelCount() - 1;
+        clusters = createClusters(pyramid.getPixels(top), pyramid.getWidth(top), pyramid.getHeight(top), ClusterCount);
+        int[] centroids = new int[clusters.length];
+        int[] labels = null;
+        int loops = 0;
+        for (int level = top; level >= 0; level--) {
+            int[] pixels = pyramid.getPixels(level);
+            int[] levelLabels = level == 0 ? cLookupTable : new int[pixels.length];
+            if (labels == null) Arrays.fill(levelLabels, -1);
+            else pyramid.upsample(level, labels, levelLabels);
+            labels = levelLabels;
 
-        // create result image
-        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int clusterId = cLookupTable[width * y + x];
-                result.setRGB(x, y, clusters[clusterId].getRGB());
+            int pixelsChangedCluster = pixels.length;
+            int levelLoops = 0;
+            while (pixelsChangedCluster > 0 && (level == top ? loops < maxLoops : levelLoops < refineLoops)) {
+                for (Cluster cluster : clusters)
+                    centroids[cluster.getId()] = cluster.centroid();
+                long loopStart = System.nanoTime();
+                Object event = JFR ? KMeansLoopEvent.create() : null;
+                pixelsChangedCluster = assignParallel(pixels, pyramid.getWidth(level), pyramid.getHeight(level), labels);
+                loops++;
+                levelLoops++;
+                boolean reporting = event != null || !listeners.isEmpty();
+                int shift = maxCentroidShift >= 0 || reporting ? centroidShift(clusters, centroids) : 0;
+                if (reporting) report(clusters, loops, System.nanoTime() - loopStart, event, MODE_PYRAMID,
+                        pixels.length, pixelsChangedCluster, shift);
+                // no pixel of the image is stable before the last level
+                if (task != null) task.loopDone(level == 0 ? pixels.length - pixelsChangedCluster : 0);
+                if (level < top) {
+                    if (pixelsChangedCluster <= refineTolerance * pixels.length) break;
+                } else {
+                    if (pixelsChangedCluster <= minChangedFraction * pixels.length) break;
+                    if (maxCentroidShift >= 0 && shift <= maxCentroidShift) break;
+                }
             }
         }
+        return loops;
+    }
+
+    /*
+     * The arrays of the pixels and of the labels: the kept ones when they have
+     * the given size, new ones otherwise.
+     */
+    private int[] pixelBuffer (int size) {
+        if (!reuseBuffers) return new int[size];
+        if (keptPixels == null || keptPixels.length != size) keptPixels = new int[size];
+        return keptPixels;
+    }
+
+    private int[] labelBuffer (int size) {
+        if (!reuseBuffers) return new int[size];
+        if (keptLabels == null || keptLabels.length != size) keptLabels = new int[size];
+        return keptLabels;
+    }
 
+    /**
+     * Prints the timing and tells the listeners that the clustering is done.
+     */
+    private void done (long start, long startNanos, int ClusterCount, int loops) {
         // timer.end()
         long end = System.currentTimeMillis();
 //        System.out.println("Clustered to " + ClusterCount
 //                + " clusters in " + loops
 //                + " loops in " + (end - start) + " ms.");
-        System.out.printf("DONE in %dms !  Clustered to %d clusters, in %d loops.",
-                (end - start), ClusterCount, loops);
-        return result;
+        if (verbose)
+            System.out.printf("DONE in %dms !  Clustered to %d clusters, in %d loops.",
+                    (end - start), ClusterCount, loops);
+        clusteringDone(loops, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Tells the listeners that the clustering is done.
+     */
+    void clusteringDone (int loops, long nanos) {
+        for (KMeansListener listener : listeners)
+            listener.clusteringDone(loops, nanos);
+    }
+
+    /**
+     * Ends a loop which moved changedPixels of the pixelCount pixels: tells the
+     * listeners and JFR (if the event was started) about it, and whether the
+     * stopping rules end the clustering. centroids are the cluster colors before
+     * the loop.
+     */
+    boolean endLoop (Cluster[] clusters, int[] centroids, int loops, long loopStart, Object event, int mode,
+                     int pixelCount, int changedPixels) {
+        boolean reporting = event != null || !listeners.isEmpty();
+        int shift = maxCentroidShift >= 0 || reporting ? centroidShift(clusters, centroids) : 0;
+        if (reporting) report(clusters, loops, System.nanoTime() - loopStart, event, mode, pixelCount,
+                changedPixels, shift);
+        return changedPixels == 0 || loops >= maxLoops || changedPixels <= minChangedFraction * pixelCount
+                || maxCentroidShift >= 0 && shift <= maxCentroidShift;
+    }
+
+    /**
+     * Tells the listeners, if any, and JFR, if the event was started, about a loop.
+     */
+    private void report (Cluster[] clusters, int loop, long nanos, Object event, int mode, int pixelCount,
+                         int changedPixels, int centroidDrift) {
+        if (!listeners.isEmpty()) {
+            int[] sizes = new int[clusters.length];
+            for (Cluster cluster : clusters)
+                sizes[cluster.getId()] = cluster.getPixelCount();
+            for (KMeansListener listener : listeners)
+                listener.loopDone(loop, nanos, changedPixels, centroidDrift, sizes);
+        }
+        if (event != null)
+            KMeansLoopEvent.finish(event, loop, mode, pixelCount, changedPixels, centroidDrift, clusters);
+    }
+
+    /**
+     * Runs one loop of the given mode.
+     *
+     * @return the number of pixels that moved to another cluster.
+     */
+    private int loop (int mode, int[] pixels, int width, int height, int[] cLookupTable,
+                      ColorHistogram histogram, BoundedAssignment bounded) {
+        if (mode == MODE_PARALLEL) {
+            // assign the row bands concurrently, then update from the merged sums
+            return assignParallel(pixels, width, height, cLookupTable);
+        }
+        if (mode == MODE_HISTOGRAM) {
+            // weighted loop over the distinct colors only
+            return histogram.assign(clusters);
+        }
+        if (mode == MODE_ACCELERATED) {
+            return bounded.assign(clusters, cLookupTable);
+        }
+        if (mode == MODE_ITERATIVE) {
+            // the clusters don't move during the assignment, so the pixels go by blocks
+            int pixelsChangedCluster = AssignmentKernel.of(clusters).assign(pixels, 0, pixels.length, cLookupTable);
+            // update clusters
+            for (Cluster cluster : clusters) {
+                cluster.clear();
+            }
+            for (int i = 0; i < pixels.length; i++) {
+                // add pixels to cluster
+                clusters[cLookupTable[i]].addPixel(pixels[i]);
+            }
+            return pixelsChangedCluster;
+        }
+        int pixelsChangedCluster = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            Cluster cluster = findMinimalCluster(pixel);
+            if (cLookupTable[i] != cluster.getId()) {
+                // cluster changed
+                if (mode == MODE_CONTINUOUS) {
+                    if (cLookupTable[i] != -1) {
+                        // remove from possible previousthen
+                        // cluster
+                        clusters[cLookupTable[i]].removePixel(pixel);
+                    }
+
+                    cluster.addPixel(pixel);
+                }
+
+                pixelsChangedCluster++;
+
+
+                cLookupTable[i] = cluster.getId();
+            }
+        }
+        return pixelsChangedCluster;
+    }
+
+    /**
+     * The largest L1 distance a cluster color moved from the given colors.
+     */
+    private static int centroidShift (Cluster[] clusters, int[] centroids) {
+        int shift = 0;
+        for (Cluster cluster : clusters)
+            shift = Math.max(shift, Cluster.l1(centroids[cluster.getId()], cluster.centroid()));
+        return shift;
+    }
+
+    /**
+     * Replaces every cluster id of the lookup table by the color of its cluster.
+     */
+    private int[] render (int[] cLookupTable) {
+        int[] colors = new int[clusters.length];
+        for (Cluster cluster : clusters)
+            if (cluster.getPixelCount() > 0) colors[cluster.getId()] = cluster.getRGB();
+        int[] rgb = new int[cLookupTable.length];
+        for (int i = 0; i < rgb.length; i++)
+            rgb[i] = colors[cLookupTable[i]];
+        return rgb;
+    }
+
+    /**
+     * Renders the cluster ids given by calculateLabels, as calculate would have.
+     */
+    private BufferedImage renderLabels (byte[] labels, int width, int height) {
+        Palette colors = getPalette();
+        if (indexedOutput) return PixelBuffer.wrapIndexed(labels, width, height, colors.getColorModel());
+        int[] rgb = new int[labels.length];
+        for (int i = 0; i < rgb.length; i++)
+            rgb[i] = colors.getColor(labels[i] & 0xFF);
+        return PixelBuffer.wrap(rgb, width, height);
+    }
+
+    /**
+     * Narrows the lookup table to one byte per pixel; there are at most 256 clusters.
+     */
+    private static byte[] labels (int[] cLookupTable) {
+        byte[] labels = new byte[cLookupTable.length];
+        for (int i = 0; i < labels.length; i++)
+            labels[i] = (byte) cLookupTable[i];
+        return labels;
+    }
+
+    private int assignParallel (int[] pixels, int width, int height, int[] cLookupTable) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int bandHeight = ParallelAssignment.bandHeight(height, pool.getParallelism());
+        ParallelAssignment.Partial sums = pool.invoke(
+                new ParallelAssignment(pixels, width, AssignmentKernel.of(clusters), clusters.length, cLookupTable,
+                        0, height, bandHeight));
+        sums.updateClusters(clusters);
+        return sums.changed;
     }
 
     public Cluster[] createClusters (BufferedImage image, int ClusterCount) {
+        return createClusters(PixelBuffer.read(image), image.getWidth(), image.getHeight(), ClusterCount);
+    }
+
+    Cluster[] createClusters (int[] pixels, int width, int height, int ClusterCount) {
+        if (ClusterCount < 1) throw new IllegalArgumentException("ClusterCount should be at least 1");
+        Cluster[] result = new Cluster[ClusterCount];
+        if (seeding == SEEDING_KMEANS_PLUS_PLUS) {
+            // The seed is fixed, so the result looks always same with same image.
+            Random random = new Random(seed);
+            int[] centers = Seeding.kMeansPlusPlus(Seeding.sample(pixels, random), ClusterCount, random);
+            for (int i = 0; i < ClusterCount; i++)
+                result[i] = new Cluster(i, centers[i]);
+            return result;
+        }
         // Here the clusters are taken with specific steps,
         // so the result looks always same with same image.
-        // You can randomize the cluster centers, if you like.
-        Cluster[] result = new Cluster[ClusterCount];
         int x = 0;
         int y = 0;
-        int dx = image.getWidth() / ClusterCount;
-        int dy = image.getHeight() / ClusterCount;
+        // (the steps may be 0 when there are more clusters than rows or columns)
+        int dx = width / ClusterCount;
+        int dy = height / ClusterCount;
         for (int i = 0; i < ClusterCount; i++) {
-            result[i] = new Cluster(i, image.getRGB(x, y));
+            result[i] = new Cluster(i, pixels[width * y + x]);
             x += dx;
             y += dy;
         }
@@ -161,15 +836,6 @@ public class KMeans {
     }
 
     public Cluster findMinimalCluster (int rgb) {
-        Cluster cluster = null;
-        int min = Integer.MAX_VALUE;
-        for (Cluster cluster1 : clusters) {
-            int distance = cluster1.distance(rgb);
-            if (distance < min) {
-                min = distance;
-                cluster = cluster1;
-            }
-        }
-        return cluster;
+        return clusters[Cluster.nearest(clusters, rgb)];
     }
 }
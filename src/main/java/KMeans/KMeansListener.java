@@ -0,0 +1,27 @@
+package KMeans;
+
+/**
+ * Receives the metrics of every loop of {@link KMeans#calculate}, on the
+ * thread which runs it.
+ */
+public interface KMeansListener {
+
+    /**
+     * Called after each loop.
+     *
+     * @param loop          the number of the loop, from 1.
+     * @param nanos         the duration of the loop.
+     * @param changedPixels the pixels which moved to another cluster.
+     * @param centroidDrift the largest L1 distance a cluster color moved.
+     * @param clusterSizes  the pixels of each cluster, by cluster id.
+     */
+    void loopDone (int loop, long nanos, int changedPixels, int centroidDrift, int[] clusterSizes);
+
+    /**
+     * Called once the image is clustered.
+     *
+     * @param loops the number of loops.
+     * @param nanos the duration of the whole clustering.
+     */
+    void clusteringDone (int loops, long nanos);
+}
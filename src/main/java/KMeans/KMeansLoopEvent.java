@@ -0,0 +1,62 @@
+package KMeans;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event of a KMeans loop; its duration is the loop's. Only used when
+ * the JVM has JFR (see {@link KMeans#JFR}), so this class is never loaded
+ * otherwise, and only created while a recording enables it.
+ */
+@Name("KMeans.Loop")
+@Label("KMeans Loop")
+@Category("Segmentation")
+@Description("One assignment and update loop of KMeans")
+final class KMeansLoopEvent extends Event {
+    @Label("Loop")
+    int loop;
+    @Label("Mode")
+    int mode;
+    @Label("Pixels")
+    int pixels;
+    @Label("Changed Pixels")
+    int changedPixels;
+    @Label("Centroid Drift")
+    int centroidDrift;
+    @Label("Clusters")
+    int clusters;
+    @Label("Largest Cluster")
+    int largestCluster;
+
+    /**
+     * @return the started event, or null if no recording enables it.
+     */
+    static Object create () {
+        KMeansLoopEvent event = new KMeansLoopEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event, and commits it if the recording keeps it (e.g. it lasted long enough).
+     */
+    static void finish (Object started, int loop, int mode, int pixels, int changedPixels, int centroidDrift,
+                        Cluster[] clusters) {
+        KMeansLoopEvent event = (KMeansLoopEvent) started;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.loop = loop;
+        event.mode = mode;
+        event.pixels = pixels;
+        event.changedPixels = changedPixels;
+        event.centroidDrift = centroidDrift;
+        event.clusters = clusters.length;
+        for (Cluster cluster : clusters)
+            event.largestCluster = Math.max(event.largestCluster, cluster.getPixelCount());
+        event.commit();
+    }
+}
@@ -0,0 +1,176 @@
+package KMeans;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Clusters the frames of a video or an image sequence, starting every frame
+ * from the clusters and the pixel assignments of the previous one.
+ * The first frame is clustered from scratch, like MODE_ITERATIVE. On the next
+ * frames, the first loop only reassigns the pixels whose color moved by more
+ * than the color tolerance, then the clusters are updated and at most
+ * maxLoops - 1 full loops follow. Neighboring frames being nearly identical,
+ * that is usually enough. Every frame also stops under the stopping rules of
+ * the settings, and reports its loops to their listeners (and JFR) as
+ * KMeans.cluster does.
+ * All the buffers are kept from frame to frame, including the one of the
+ * result: a frame's image is overwritten by the next one.
+ */
+public class KMeansSequence {
+    private final KMeans settings;
+    private final int clusterCount;
+    private int maxLoops = 2;
+    private int colorTolerance = 0;
+    // What is carried from frame to frame
+    private int width, height;
+    private Cluster[] clusters;
+    private int[] pixels, previous, cLookupTable, rgb;
+    private long[] reds, greens, blues;
+    private int[] counts, centroids;
+    private BufferedImage result;
+    private int loops;
+
+    /**
+     * @param settings the seeding of the first frame, the stopping rules and the
+     *                 listeners (added to the settings afterwards too).
+     */
+    public KMeansSequence (KMeans settings, int clusterCount) {
+        if (clusterCount < 1) throw new IllegalArgumentException("clusterCount should be at least 1");
+        this.settings = settings.copy();
+        this.clusterCount = clusterCount;
+    }
+
+    /**
+     * Sets the most loops per frame, after the first frame (2 by default); the
+     * stopping rules of the settings may stop them earlier.
+     */
+    public void setMaxLoops (int maxLoops) {
+        if (maxLoops < 1) throw new IllegalArgumentException("maxLoops should be at least 1");
+        this.maxLoops = maxLoops;
+    }
+
+    /**
+     * Sets the L1 distance (sum of the red, green and blue differences) a pixel's color
+     * must move by, from a frame to the next, to be reassigned by the first loop. 0, the
+     * default, reassigns every pixel whose color changed.
+     */
+    public void setColorTolerance (int colorTolerance) {
+        if (colorTolerance < 0) throw new IllegalArgumentException("colorTolerance should be at least 0");
+        this.colorTolerance = colorTolerance;
+    }
+
+    /**
+     * Clusters the next frame. A frame of another size than the previous one starts
+     * the sequence over.
+     *
+     * @return the clustered frame, valid until the next call.
+     */
+    public BufferedImage next (BufferedImage frame) {
+        long startNanos = System.nanoTime();
+        boolean first = clusters == null || frame.getWidth() != width || frame.getHeight() != height;
+        if (first) {
+            width = frame.getWidth();
+            height = frame.getHeight();
+            pixels = PixelBuffer.read(frame);
+            previous = new int[pixels.length];
+            cLookupTable = new int[pixels.length];
+            Arrays.fill(cLookupTable, -1);
+            rgb = new int[pixels.length];
+            result = PixelBuffer.wrap(rgb, width, height);
+            clusters = settings.createClusters(pixels, width, height, clusterCount);
+            reds = new long[clusterCount];
+            greens = new long[clusterCount];
+            blues = new long[clusterCount];
+            counts = new int[clusterCount];
+            centroids = new int[clusterCount];
+        } else {
+            int[] swap = previous;
+            previous = pixels;
+            pixels = PixelBuffer.read(frame, swap);
+        }
+
+        // the first frame converges from scratch, the others start from the previous one
+        loops = 0;
+        boolean stop = false;
+        while (!stop) {
+            for (Cluster cluster : clusters)
+                centroids[cluster.getId()] = cluster.centroid();
+            long loopStart = System.nanoTime();
+            Object event = KMeans.JFR ? KMeansLoopEvent.create() : null;
+            int pixelsChangedCluster = assign(!first && loops == 0);
+            update();
+            loops++;
+            stop = settings.endLoop(clusters, centroids, loops, loopStart, event, KMeans.MODE_ITERATIVE,
+                    pixels.length, pixelsChangedCluster) || !first && loops >= maxLoops;
+        }
+        settings.clusteringDone(loops, System.nanoTime() - startNanos);
+        render();
+        return result;
+    }
+
+    /**
+     * @return the loops of the last frame.
+     */
+    public int getLoops () {
+        return loops;
+    }
+
+    /**
+     * Forgets the previous frames; the next one is clustered from scratch.
+     */
+    public void reset () {
+        clusters = null;
+    }
+
+    /**
+     * Assigns the pixels (only the ones whose color moved if changedOnly) to their
+     * nearest cluster.
+     *
+     * @return the number of pixels that moved to another cluster.
+     */
+    private int assign (boolean changedOnly) {
+        AssignmentKernel kernel = AssignmentKernel.of(clusters);
+        if (!changedOnly) return kernel.assign(pixels, 0, pixels.length, cLookupTable);
+        int pixelsChangedCluster = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            if (Cluster.l1(pixels[i], previous[i]) <= colorTolerance) continue;
+            int cluster = kernel.nearest(pixels[i]);
+            if (cLookupTable[i] != cluster) {
+                cLookupTable[i] = cluster;
+                pixelsChangedCluster++;
+            }
+        }
+        return pixelsChangedCluster;
+    }
+
+    /**
+     * Moves every cluster to the mean of its pixels, as MODE_ITERATIVE does.
+     */
+    private void update () {
+        Arrays.fill(reds, 0);
+        Arrays.fill(greens, 0);
+        Arrays.fill(blues, 0);
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < pixels.length; i++) {
+            int cluster = cLookupTable[i];
+            int pixel = pixels[i];
+            reds[cluster] += pixel >> 16 & 0xFF;
+            greens[cluster] += pixel >> 8 & 0xFF;
+            blues[cluster] += pixel & 0xFF;
+            counts[cluster]++;
+        }
+        for (Cluster cluster : clusters) {
+            int id = cluster.getId();
+            cluster.clear();
+            cluster.addPixels(reds[id], greens[id], blues[id], counts[id]);
+        }
+    }
+
+    private void render () {
+        int[] colors = new int[clusters.length];
+        for (Cluster cluster : clusters)
+            if (cluster.getPixelCount() > 0) colors[cluster.getId()] = cluster.getRGB();
+        for (int i = 0; i < rgb.length; i++)
+            rgb[i] = colors[cLookupTable[i]];
+    }
+}
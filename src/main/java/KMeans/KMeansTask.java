@@ -0,0 +1,68 @@
+package KMeans;
+
+import CORE.ImageProcessingTask;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Clusters one image as an {@link ImageProcessingTask}, so it can be run and
+ * cancelled by a {@link CORE.TaskExecutor} like the region labeling tasks.
+ * The size is the number of pixels and the position the number of pixels
+ * which did not move during the last loop; cancellation is checked after
+ * every loop.
+ */
+public class KMeansTask extends ImageProcessingTask {
+    private final KMeans kMeans;
+    private final BufferedImage image;
+    private final int clusterCount;
+    private final int mode;
+    private volatile long position;
+    private volatile BufferedImage result;
+
+    /**
+     * @param settings the seeding and stopping rules, copied when the task is created.
+     */
+    public KMeansTask (KMeans settings, BufferedImage image, int clusterCount, int mode) {
+        if (mode == KMeans.MODE_MINIBATCH)
+            throw new IllegalArgumentException("MODE_MINIBATCH streams files, it can't run on an image");
+        this.kMeans = settings.copy();
+        this.kMeans.setVerbose(false);
+        this.image = image;
+        this.clusterCount = clusterCount;
+        this.mode = mode;
+    }
+
+    @Override
+    public void run () {
+        result = kMeans.calculate(image, clusterCount, mode, this);
+        position = getSize();
+    }
+
+    // Called by KMeans after every loop
+    void loopDone (long stablePixels) {
+        position = stablePixels;
+        checkCancelled();
+    }
+
+    @Override
+    public long getSize () {
+        return (long) image.getWidth() * image.getHeight();
+    }
+
+    @Override
+    public long getPosition () {
+        return position;
+    }
+
+    @Override
+    public boolean isFinished () {
+        return result != null;
+    }
+
+    /**
+     * @return the clustered image, or null if the task is not finished.
+     */
+    public BufferedImage getOutput () {
+        return result;
+    }
+}
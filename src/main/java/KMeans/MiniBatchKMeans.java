@@ -0,0 +1,167 @@
+package KMeans;
+
+import java.awt.*;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+/**
+ * Mini-batch KMeans (MODE_MINIBATCH) for images that don't fit in the heap.
+ * The image is never decoded as a whole: a first pass reads it tile by tile
+ * and keeps a bounded reservoir of random pixels, the centers are learned
+ * from random mini-batches of that reservoir (Sculley's per-center learning
+ * rate), and the result is labeled one row of tiles at a time while it is
+ * being encoded.
+ * Peak memory depends on the tile and reservoir sizes, not on the image size.
+ */
+public class MiniBatchKMeans {
+    private final int clusterCount;
+    private int batchSize = 1024;
+    private int iterations = 200;
+    private int sampleSize = 1 << 16;
+    private long seed = 0x5EED;
+    private Cluster[] clusters;
+
+    public MiniBatchKMeans (int clusterCount) {
+        this.clusterCount = clusterCount;
+    }
+
+    /**
+     * Sets the number of pixels per mini-batch.
+     */
+    public void setBatchSize (int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the number of mini-batches the centers are learned from.
+     */
+    public void setIterations (int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * Sets the number of pixels sampled from the image.
+     */
+    public void setSampleSize (int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Sets the seed of the sampling, runs with the same seed give the same result.
+     */
+    public void setSeed (long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Learns the centers from pixels sampled out of the image.
+     */
+    public void fit (TiledImageReader tiles) throws IOException {
+        Random random = new Random(seed);
+        int[] sample = sample(tiles, random);
+        int count = Math.min(clusterCount, sample.length);
+        // Seed the centers with k-means++ over the sample
+        int[] seeds = Seeding.kMeansPlusPlus(sample, count, random);
+        double[][] centers = new double[count][3];
+        for (int j = 0; j < count; j++) {
+            centers[j][0] = seeds[j] >> 16 & 0x000000FF;
+            centers[j][1] = seeds[j] >> 8 & 0x000000FF;
+            centers[j][2] = seeds[j] & 0x000000FF;
+        }
+        long[] seen = new long[count];
+        int[] batch = new int[Math.min(batchSize, sample.length)];
+        int[] nearest = new int[batch.length];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = sample[random.nextInt(sample.length)];
+                nearest[i] = nearest(centers, batch[i]);
+            }
+            // Move each center toward its pixels, slower as it has seen more of them
+            for (int i = 0; i < batch.length; i++) {
+                double[] center = centers[nearest[i]];
+                double rate = 1.0 / ++seen[nearest[i]];
+                center[0] += rate * ((batch[i] >> 16 & 0x000000FF) - center[0]);
+                center[1] += rate * ((batch[i] >> 8 & 0x000000FF) - center[1]);
+                center[2] += rate * ((batch[i] & 0x000000FF) - center[2]);
+            }
+        }
+        clusters = new Cluster[count];
+        for (int j = 0; j < count; j++)
+            clusters[j] = new Cluster(j, (int) Math.round(centers[j][0]) << 16
+                    | (int) Math.round(centers[j][1]) << 8 | (int) Math.round(centers[j][2]));
+    }
+
+    /**
+     * Returns the segmented image, with every pixel painted with its cluster
+     * color. It is labeled one row of tiles at a time, as the returned image
+     * is read (e.g. by an ImageWriter).
+     */
+    public RenderedImage label (final TiledImageReader tiles) {
+        if (clusters == null) throw new IllegalStateException("fit() must be called before label()");
+        final int width = tiles.getWidth();
+        final int[] colors = new int[clusters.length];
+        for (Cluster cluster : clusters)
+            colors[cluster.getId()] = cluster.centroid();
+        return new BandedImage(width, tiles.getHeight(), tiles.getTileHeight()) {
+            @Override
+            protected void computeBand (int y, int[] rgb) {
+                int tileY = y / tiles.getTileHeight();
+                for (int tileX = 0; tileX < tiles.getNumXTiles(); tileX++) {
+                    Rectangle bounds = tiles.getTileBounds(tileX, tileY);
+                    int[] pixels;
+                    try {
+                        pixels = tiles.readTile(tileX, tileY);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    for (int row = 0, i = 0; row < bounds.height; row++) {
+                        int offset = row * width + bounds.x;
+                        for (int x = 0; x < bounds.width; x++)
+                            rgb[offset + x] = colors[Cluster.nearest(clusters, pixels[i++])];
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the image once, tile by tile, keeping a uniform random sample
+     * of its pixels (reservoir sampling).
+     */
+    private int[] sample (TiledImageReader tiles, Random random) throws IOException {
+        long total = (long) tiles.getWidth() * tiles.getHeight();
+        int[] sample = new int[(int) Math.min(sampleSize, total)];
+        long seen = 0;
+        for (int tileY = 0; tileY < tiles.getNumYTiles(); tileY++) {
+            for (int tileX = 0; tileX < tiles.getNumXTiles(); tileX++) {
+                for (int pixel : tiles.readTile(tileX, tileY)) {
+                    if (seen < sample.length) sample[(int) seen] = pixel;
+                    else {
+                        long slot = (long) (random.nextDouble() * (seen + 1));
+                        if (slot < sample.length) sample[(int) slot] = pixel;
+                    }
+                    seen++;
+                }
+            }
+        }
+        return sample;
+    }
+
+    private static int nearest (double[][] centers, int pixel) {
+        int r = pixel >> 16 & 0x000000FF;
+        int g = pixel >> 8 & 0x000000FF;
+        int b = pixel & 0x000000FF;
+        int nearest = 0;
+        double min = Double.MAX_VALUE;
+        for (int j = 0; j < centers.length; j++) {
+            double distance = Math.abs(centers[j][0] - r) + Math.abs(centers[j][1] - g) + Math.abs(centers[j][2] - b);
+            if (distance < min) {
+                min = distance;
+                nearest = j;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,255 @@
+package KMeans;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The cluster colors learned by {@link KMeans}, which can be saved and applied
+ * to other images without clustering them.
+ * Applying a palette goes through a lookup table of the nearest cluster of
+ * every color, quantized to 5, 6 or 8 bits per channel (32K, 256K or 16M
+ * entries), so each pixel costs one array read. With 8 bits the table gives
+ * exactly the cluster {@link Cluster#nearest} gives; with less, every cell of
+ * the color cube maps to the nearest cluster of its center.
+ * The file format is the magic "KMPL", a version byte, the number of colors
+ * (a short) and their red, green and blue bytes.
+ */
+public class Palette {
+    private static final int MAGIC = 0x4B4D504C;
+    private static final int VERSION = 1;
+
+    // The cluster centers, packed as RGB colors
+    private final int[] colors;
+    // The bits per channel of the lookup table, and the table once built
+    private int bits = 8;
+    private volatile LookupTable table;
+
+    Palette (int[] colors) {
+        if (colors.length < 1 || colors.length > 256)
+            throw new IllegalArgumentException("A palette has 1 to 256 colors");
+        this.colors = colors.clone();
+    }
+
+    static Palette of (Cluster[] clusters) {
+        int[] colors = new int[clusters.length];
+        for (Cluster cluster : clusters)
+            colors[cluster.getId()] = cluster.centroid();
+        return new Palette(colors);
+    }
+
+    public int getSize () {
+        return colors.length;
+    }
+
+    /**
+     * @return the color of the given entry, as an opaque RGB color.
+     */
+    public int getColor (int index) {
+        return 0xFF000000 | colors[index];
+    }
+
+    /**
+     * Sets the bits per channel of the lookup table: 5, 6 or 8 (the default).
+     */
+    public synchronized void setLookupBits (int bits) {
+        if (bits != 5 && bits != 6 && bits != 8)
+            throw new IllegalArgumentException("The lookup table has 5, 6 or 8 bits per channel");
+        if (bits != this.bits) table = null;
+        this.bits = bits;
+    }
+
+    /**
+     * Replaces every pixel of the image by the nearest palette color.
+     *
+     * @return a new TYPE_INT_RGB image.
+     */
+    public BufferedImage apply (BufferedImage image) {
+        int[] pixels = PixelBuffer.read(image);
+        LookupTable lookup = lookupTable();
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 0xFF000000 | colors[lookup.get(pixels[i])];
+        return PixelBuffer.wrap(pixels, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Replaces every pixel of the image by the index of the nearest palette color.
+     *
+     * @return a new TYPE_BYTE_INDEXED image, with the palette as its color model.
+     */
+    public BufferedImage applyIndexed (BufferedImage image) {
+        return PixelBuffer.wrapIndexed(label(image), image.getWidth(), image.getHeight(), getColorModel());
+    }
+
+    /**
+     * @return the index of the nearest palette color of every pixel, row after row.
+     */
+    public byte[] label (BufferedImage image) {
+        int[] pixels = PixelBuffer.read(image);
+        LookupTable lookup = lookupTable();
+        byte[] indices = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            indices[i] = (byte) lookup.get(pixels[i]);
+        return indices;
+    }
+
+    /**
+     * @return an 8 bit color model with the palette colors as its entries.
+     */
+    public IndexColorModel getColorModel () {
+        byte[] reds = new byte[colors.length];
+        byte[] greens = new byte[colors.length];
+        byte[] blues = new byte[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            reds[i] = (byte) (colors[i] >> 16);
+            greens[i] = (byte) (colors[i] >> 8);
+            blues[i] = (byte) colors[i];
+        }
+        return new IndexColorModel(8, colors.length, reds, greens, blues);
+    }
+
+    /**
+     * @return the index of the nearest palette color, through the lookup table.
+     */
+    public int indexOf (int rgb) {
+        return lookupTable().get(rgb);
+    }
+
+    private LookupTable lookupTable () {
+        LookupTable lookup = table;
+        if (lookup == null) {
+            synchronized (this) {
+                if (table == null) table = new LookupTable(bits, buildTable(bits));
+                lookup = table;
+            }
+        }
+        return lookup;
+    }
+
+    /*
+     * Finds the nearest color of every cell, a slice of reds per task.
+     */
+    private byte[] buildTable (final int bits) {
+        final int levels = 1 << bits;
+        final int shift = 8 - bits;
+        // the center of a cell, 0 when the cells are single colors
+        final int half = shift == 0 ? 0 : 1 << shift - 1;
+        final byte[] lookup = new byte[levels * levels * levels];
+        List<Callable<Void>> slices = new ArrayList<>();
+        for (int r = 0; r < levels; r++) {
+            final int red = r;
+            slices.add(new Callable<Void>() {
+                @Override
+                public Void call () {
+                    int[] redGreen = new int[colors.length];
+                    int cell = red * levels * levels;
+                    for (int green = 0; green < levels; green++) {
+                        // the red and green part of the L1 distances, shared by the whole row of blues
+                        for (int i = 0; i < colors.length; i++)
+                            redGreen[i] = Math.abs((red << shift | half) - (colors[i] >> 16 & 0xFF))
+                                    + Math.abs((green << shift | half) - (colors[i] >> 8 & 0xFF));
+                        for (int blue = 0; blue < levels; blue++)
+                            lookup[cell++] = (byte) nearest(redGreen, blue << shift | half);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(slices)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while building the lookup table", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Building the lookup table failed", e.getCause());
+            }
+        }
+        return lookup;
+    }
+
+    /*
+     * The nearest color under Cluster's distance (the L1 distance divided by three), the
+     * first one on ties, given the red and green part of the distances.
+     */
+    private int nearest (int[] redGreen, int blue) {
+        int index = 0;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < colors.length; i++) {
+            int distance = (redGreen[i] + Math.abs(blue - (colors[i] & 0xFF))) / 3;
+            if (distance < min) {
+                min = distance;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    public void write (OutputStream output) throws IOException {
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeShort(colors.length);
+        for (int color : colors) {
+            data.writeByte(color >> 16 & 0xFF);
+            data.writeByte(color >> 8 & 0xFF);
+            data.writeByte(color & 0xFF);
+        }
+        data.flush();
+    }
+
+    public static Palette read (InputStream input) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        if (data.readInt() != MAGIC) throw new IOException("Err! Not a palette file");
+        int version = data.readUnsignedByte();
+        if (version != VERSION) throw new IOException("Err! Unknown palette version " + version);
+        int count = data.readUnsignedShort();
+        if (count < 1 || count > 256) throw new IOException("Err! Bad palette size " + count);
+        int[] colors = new int[count];
+        for (int i = 0; i < count; i++)
+            colors[i] = data.readUnsignedByte() << 16 | data.readUnsignedByte() << 8 | data.readUnsignedByte();
+        return new Palette(colors);
+    }
+
+    public void save (File file) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            write(output);
+        }
+    }
+
+    public static Palette load (File file) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            return read(input);
+        }
+    }
+
+    /**
+     * The nearest color index of every cell of the quantized color cube.
+     */
+    private static final class LookupTable {
+        final int shift;
+        final int mask;
+        final int bits;
+        final byte[] cells;
+
+        LookupTable (int bits, byte[] cells) {
+            this.bits = bits;
+            this.shift = 8 - bits;
+            this.mask = (1 << bits) - 1;
+            this.cells = cells;
+        }
+
+        int get (int rgb) {
+            int red = rgb >> 16 + shift & mask;
+            int green = rgb >> 8 + shift & mask;
+            int blue = rgb >> shift & mask;
+            return cells[(red << bits | green) << bits | blue] & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package KMeans;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/join version of the assignment step of {@link KMeans} (MODE_PARALLEL).
+ * The image is split into row bands which are labeled concurrently; every band
+ * keeps its own partial color sums, and the partial sums are merged on join so
+ * the clusters can be updated once at the end of the loop.
+ * Since the clusters are only read during the assignment and the integer sums
+ * are merged exactly, the result is the same as the one of MODE_ITERATIVE.
+ */
+class ParallelAssignment extends RecursiveTask<ParallelAssignment.Partial> {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] pixels;
+    private final int width;
+    private final AssignmentKernel kernel;
+    private final int clusterCount;
+    private final int[] cLookupTable;
+    private final int fromRow;
+    private final int toRow;
+    private final int bandHeight;
+
+    ParallelAssignment (int[] pixels, int width, AssignmentKernel kernel, int clusterCount, int[] cLookupTable,
+                        int fromRow, int toRow, int bandHeight) {
+        this.pixels = pixels;
+        this.width = width;
+        this.kernel = kernel;
+        this.clusterCount = clusterCount;
+        this.cLookupTable = cLookupTable;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.bandHeight = bandHeight;
+    }
+
+    /**
+     * Picks a band height giving a few bands per worker, so that the
+     * work stealing can balance bands that converge at different speeds.
+     */
+    static int bandHeight (int height, int parallelism) {
+        return Math.max(1, height / (parallelism * 4));
+    }
+
+    @Override
+    protected Partial compute () {
+        if (toRow - fromRow <= bandHeight) return assignBand();
+        int middle = (fromRow + toRow) >>> 1;
+        ParallelAssignment top = new ParallelAssignment(pixels, width, kernel, clusterCount, cLookupTable,
+                fromRow, middle, bandHeight);
+        ParallelAssignment bottom = new ParallelAssignment(pixels, width, kernel, clusterCount, cLookupTable,
+                middle, toRow, bandHeight);
+        top.fork();
+        Partial result = bottom.compute();
+        result.merge(top.join());
+        return result;
+    }
+
+    private Partial assignBand () {
+        Partial partial = new Partial(clusterCount);
+        int from = fromRow * width;
+        int end = toRow * width;
+        partial.changed = kernel.assign(pixels, from, end, cLookupTable);
+        for (int i = from; i < end; i++) {
+            int pixel = pixels[i];
+            int clusterId = cLookupTable[i];
+            partial.reds[clusterId] += pixel >> 16 & 0x000000FF;
+            partial.greens[clusterId] += pixel >> 8 & 0x000000FF;
+            partial.blues[clusterId] += pixel & 0x000000FF;
+            partial.counts[clusterId]++;
+        }
+        return partial;
+    }
+
+    /**
+     * The per-band partial color sums, indexed by cluster id.
+     */
+    static class Partial {
+        final long[] reds;
+        final long[] greens;
+        final long[] blues;
+        final int[] counts;
+        int changed;
+
+        Partial (int clusterCount) {
+            reds = new long[clusterCount];
+            greens = new long[clusterCount];
+            blues = new long[clusterCount];
+            counts = new int[clusterCount];
+        }
+
+        void merge (Partial other) {
+            for (int i = 0; i < counts.length; i++) {
+                reds[i] += other.reds[i];
+                greens[i] += other.greens[i];
+                blues[i] += other.blues[i];
+                counts[i] += other.counts[i];
+            }
+            changed += other.changed;
+        }
+
+        /**
+         * Replaces the clusters' colors with the merged sums.
+         */
+        void updateClusters (Cluster[] clusters) {
+            for (Cluster cluster : clusters) {
+                int id = cluster.getId();
+                cluster.clear();
+                cluster.addPixels(reds[id], greens[id], blues[id], counts[id]);
+            }
+        }
+    }
+}
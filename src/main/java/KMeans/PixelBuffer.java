@@ -0,0 +1,116 @@
+package KMeans;
+
+import java.awt.image.*;
+
+/**
+ * Moves pixels between a {@link BufferedImage} and a packed RGB {@code int[]}
+ * (one {@code 0xAARRGGBB} entry per pixel, row after row).
+ * The image raster is read once, so the clustering loops only touch primitive
+ * arrays instead of going through the ColorModel on every getRGB/setRGB call.
+ */
+public class PixelBuffer {
+    private static final int[] RGB_MASKS = {0x00FF0000, 0x0000FF00, 0x000000FF};
+
+    private PixelBuffer () {
+    }
+
+    /**
+     * Reads the whole image into a packed RGB array. The common layouts
+     * (int RGB/ARGB and 3/4 byte BGR) are copied straight out of the
+     * DataBuffer, any other layout is converted row by row by the image.
+     */
+    public static int[] read (BufferedImage image) {
+        return read(image, new int[image.getWidth() * image.getHeight()]);
+    }
+
+    /**
+     * Reads the whole image into the given array, which must hold its pixels.
+     *
+     * @return pixels.
+     */
+    public static int[] read (BufferedImage image, int[] pixels) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (pixels.length < width * height) throw new IllegalArgumentException("The array is too small");
+        Raster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (sampleModel instanceof SinglePixelPackedSampleModel && raster.getParent() == null) {
+                    readPacked(((DataBufferInt) dataBuffer).getData(), dataBuffer.getOffset(),
+                            ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride(),
+                            image.getType() == BufferedImage.TYPE_INT_RGB, width, height, pixels);
+                    return pixels;
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if (sampleModel instanceof PixelInterleavedSampleModel && raster.getParent() == null) {
+                    readInterleaved(((DataBufferByte) dataBuffer).getData(), dataBuffer.getOffset(),
+                            (PixelInterleavedSampleModel) sampleModel, width, height, pixels);
+                    return pixels;
+                }
+                break;
+        }
+        // Let the image do the color conversion, one row at a time
+        for (int y = 0; y < height; y++)
+            image.getRGB(0, y, width, 1, pixels, y * width, width);
+        return pixels;
+    }
+
+    private static void readPacked (int[] data, int offset, int stride, boolean opaque,
+                                    int width, int height, int[] pixels) {
+        int alpha = opaque ? 0xFF000000 : 0;
+        for (int y = 0; y < height; y++) {
+            int src = offset + y * stride;
+            int dst = y * width;
+            for (int x = 0; x < width; x++)
+                pixels[dst + x] = alpha | data[src + x];
+        }
+    }
+
+    private static void readInterleaved (byte[] data, int offset, PixelInterleavedSampleModel sampleModel,
+                                         int width, int height, int[] pixels) {
+        int stride = sampleModel.getScanlineStride();
+        int pixelStride = sampleModel.getPixelStride();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        // The bands are stored as R, G, B(, A) in the sample model, whatever their byte order
+        int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2];
+        boolean hasAlpha = bandOffsets.length > 3;
+        int a = hasAlpha ? bandOffsets[3] : 0;
+        for (int y = 0; y < height; y++) {
+            int src = offset + y * stride;
+            int dst = y * width;
+            for (int x = 0; x < width; x++, src += pixelStride) {
+                int alpha = hasAlpha ? (data[src + a] & 0xFF) << 24 : 0xFF000000;
+                pixels[dst + x] = alpha
+                        | (data[src + r] & 0xFF) << 16
+                        | (data[src + g] & 0xFF) << 8
+                        | (data[src + b] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Wraps a packed RGB array into a TYPE_INT_RGB image without copying it:
+     * the array becomes the image's DataBufferInt.
+     */
+    public static BufferedImage wrap (int[] rgb, int width, int height) {
+        DataBufferInt dataBuffer = new DataBufferInt(rgb, width * height);
+        WritableRaster raster = Raster.createPackedRaster(dataBuffer, width, height, width, RGB_MASKS, null);
+        DirectColorModel colorModel = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Wraps an array of color indices, one byte per pixel, into a
+     * TYPE_BYTE_INDEXED image without copying it.
+     */
+    public static BufferedImage wrapIndexed (byte[] indices, int width, int height, IndexColorModel colorModel) {
+        DataBufferByte dataBuffer = new DataBufferByte(indices, width * height);
+        WritableRaster raster = Raster.createInterleavedRaster(dataBuffer, width, height, width, 1, new int[]{0}, null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+}
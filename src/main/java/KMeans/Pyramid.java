@@ -0,0 +1,89 @@
+package KMeans;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pixels of an image, halved again and again by averaging 2x2 blocks
+ * until a level would have less than {@link #MIN_PIXELS} pixels. Level 0 is the
+ * image itself. MODE_PYRAMID converges the clusters on the smallest level and
+ * only refines them on the larger ones, starting each level from the labels
+ * of the level below.
+ */
+class Pyramid {
+    // The smallest level keeps at least this many pixels (a 256x256 image)
+    static final int MIN_PIXELS = 1 << 16;
+
+    private final List<int[]> levels = new ArrayList<>();
+    private final List<int[]> sizes = new ArrayList<>();
+
+    Pyramid (int[] pixels, int width, int height) {
+        levels.add(pixels);
+        sizes.add(new int[]{width, height});
+        while (width > 1 && height > 1 && (long) ((width + 1) / 2) * ((height + 1) / 2) >= MIN_PIXELS) {
+            pixels = halve(pixels, width, height);
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            levels.add(pixels);
+            sizes.add(new int[]{width, height});
+        }
+    }
+
+    int getLevelCount () {
+        return levels.size();
+    }
+
+    int[] getPixels (int level) {
+        return levels.get(level);
+    }
+
+    int getWidth (int level) {
+        return sizes.get(level)[0];
+    }
+
+    int getHeight (int level) {
+        return sizes.get(level)[1];
+    }
+
+    /**
+     * Gives every pixel of the level the label of the pixel covering it on the
+     * next smaller level.
+     */
+    void upsample (int level, int[] smallerLabels, int[] labels) {
+        int width = getWidth(level);
+        int height = getHeight(level);
+        int smallerWidth = getWidth(level + 1);
+        for (int y = 0; y < height; y++) {
+            int row = (y >> 1) * smallerWidth;
+            int i = y * width;
+            for (int x = 0; x < width; x++)
+                labels[i + x] = smallerLabels[row + (x >> 1)];
+        }
+    }
+
+    /*
+     * Averages every 2x2 block; on an odd last row or column the blocks are
+     * cut, and average the pixels they have.
+     */
+    private static int[] halve (int[] pixels, int width, int height) {
+        int halfWidth = (width + 1) / 2;
+        int halfHeight = (height + 1) / 2;
+        int[] half = new int[halfWidth * halfHeight];
+        for (int y = 0; y < halfHeight; y++) {
+            int top = 2 * y * width;
+            int bottom = 2 * y + 1 < height ? top + width : top;
+            for (int x = 0; x < halfWidth; x++) {
+                int left = 2 * x;
+                int right = left + 1 < width ? left + 1 : left;
+                int p0 = pixels[top + left], p1 = pixels[top + right];
+                int p2 = pixels[bottom + left], p3 = pixels[bottom + right];
+                int red = (p0 >> 16 & 0xFF) + (p1 >> 16 & 0xFF) + (p2 >> 16 & 0xFF) + (p3 >> 16 & 0xFF);
+                int green = (p0 >> 8 & 0xFF) + (p1 >> 8 & 0xFF) + (p2 >> 8 & 0xFF) + (p3 >> 8 & 0xFF);
+                int blue = (p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF);
+                // a cut block counts its pixels twice, which leaves the average alone
+                half[y * halfWidth + x] = 0xFF000000 | (red + 2) / 4 << 16 | (green + 2) / 4 << 8 | (blue + 2) / 4;
+            }
+        }
+        return half;
+    }
+}
@@ -0,0 +1,68 @@
+package KMeans;
+
+import java.util.Random;
+
+/**
+ * k-means++ seeding: the first center is a random pixel, every next one is
+ * drawn with a probability proportional to the squared distance to the
+ * closest center picked so far, which spreads the centers over the colors
+ * actually present in the image.
+ * The candidates are a bounded random sample of the pixels, so seeding costs
+ * the same whatever the image size.
+ */
+class Seeding {
+    // How many pixels the centers are drawn from
+    static final int SAMPLE_SIZE = 1 << 14;
+
+    private Seeding () {
+    }
+
+    /**
+     * Draws a random sample of the pixels.
+     */
+    static int[] sample (int[] pixels, Random random) {
+        if (pixels.length <= SAMPLE_SIZE) return pixels.clone();
+        int[] sample = new int[SAMPLE_SIZE];
+        for (int i = 0; i < sample.length; i++)
+            sample[i] = pixels[random.nextInt(pixels.length)];
+        return sample;
+    }
+
+    /**
+     * Picks count centers out of the candidate colors.
+     * When there are fewer distinct colors than centers, the extra centers
+     * repeat a color already picked (and stay empty while clustering).
+     */
+    static int[] kMeansPlusPlus (int[] candidates, int count, Random random) {
+        int[] centers = new int[count];
+        // the squared distance of every candidate to its closest center
+        long[] weights = new long[candidates.length];
+        centers[0] = candidates[random.nextInt(candidates.length)];
+        long total = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            long d = Cluster.l1(centers[0], candidates[i]);
+            weights[i] = d * d;
+            total += weights[i];
+        }
+        for (int j = 1; j < count; j++) {
+            if (total == 0) {
+                // every candidate is already a center
+                centers[j] = centers[0];
+                continue;
+            }
+            long target = (long) (random.nextDouble() * total);
+            int pick = 0;
+            while (pick < candidates.length - 1 && (target -= weights[pick]) >= 0) pick++;
+            // skip to a candidate that may still be picked
+            while (weights[pick] == 0) pick--;
+            centers[j] = candidates[pick];
+            total = 0;
+            for (int i = 0; i < candidates.length; i++) {
+                long d = Cluster.l1(centers[j], candidates[i]);
+                if (d * d < weights[i]) weights[i] = d * d;
+                total += weights[i];
+            }
+        }
+        return centers;
+    }
+}
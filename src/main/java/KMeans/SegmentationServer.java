@@ -0,0 +1,664 @@
+package KMeans;
+
+import CORE.Binarizer;
+import CORE.RegionStatistics;
+import CORE.SimpleRegionGrowing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.media.jai.PlanarImage;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves KMeans and SimpleRegionGrowing over HTTP, on images sent as the
+ * request body, so that a single warmed-up JVM segments every image:
+ * <pre>
+ *   POST /kmeans?k=16[&amp;mode=i|c|p|h|a|r][&amp;indexed=true]   gives the clustered PNG
+ *   POST /regions[?threshold=fuzziness|otsu|none][&amp;minArea=N][&amp;format=json|png]
+ *                                                  gives the region statistics, or the labels
+ *   GET  /metrics                                  gives the counters, in the Prometheus text format
+ * </pre>
+ * The HTTP threads decode the images and queue them for the workers. At most
+ * maxPending requests are admitted at a time (queued or running), the others are
+ * answered 503 at once, and images of more than maxPixels pixels are answered 413
+ * from their header, before they are decoded, so the decoded images never pile up.
+ * A worker takes the small images (up to {@link #SMALL_PIXELS} pixels) by batches
+ * of up to batchSize from the queue, and hands a batch to the fork/join pool at
+ * once, so its images are segmented side by side on the idle cores rather than one
+ * after the other. A worker keeps a KMeans and a SimpleRegionGrowing per image of
+ * a batch, which keep their buffers for the next image of the same size.
+ * The failures of a request are logged and answered 500 without their details; an
+ * Error other than OutOfMemoryError stops the server.
+ * It only needs the JDK's com.sun.net.httpserver, e.g. to try it locally:
+ * <pre>
+ *   java -cp ... KMeans.SegmentationServer --port=8080
+ *   curl --data-binary @in.jpg -o out.png "http://localhost:8080/kmeans?k=16&amp;mode=p"
+ * </pre>
+ */
+public class SegmentationServer {
+    // The images which are batched, up to 512x512
+    static final int SMALL_PIXELS = 512 * 512;
+    // The largest request body
+    private static final int MAX_BODY = 64 << 20;
+    private static final String USAGE = "\nUsage:\t$ java KMeans.SegmentationServer  [--port=N] [--workers=N]" +
+            " [--max-pending=N] [--max-pixels=N] [--batch-size=N]  [KMEANS OPTIONS]\n\n" +
+            "\t\t\t--port=N\t\t(the HTTP port, default 8080, 0 for any free port)\n" +
+            "\t\t\t--workers=N\t\t(segmenting threads, default one per core)\n" +
+            "\t\t\t--max-pending=N\t\t(requests queued or running before answering 503, default 4 per worker)\n" +
+            "\t\t\t--max-pixels=N\t\t(the largest image accepted, in pixels, default 16777216)\n" +
+            "\t\t\t--batch-size=N\t\t(small images taken at a time by a worker, default 8)\n" +
+            "KMEANS OPTIONS\t:\tthe seeding and stopping options of KMeans\n\n";
+
+    private final KMeans settings;
+    private final int port;
+    private final int workers;
+    private final int maxPending;
+    private long maxPixels = 1 << 24;
+    private int batchSize = 8;
+    private HttpServer server;
+    private ExecutorService httpThreads;
+    private final List<Thread> workerThreads = new ArrayList<>();
+    // The admitted requests, waiting for a worker
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final Semaphore admission;
+    // The metrics
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedImages = new AtomicLong();
+    private final LatencyWindow latencies = new LatencyWindow(1024);
+    private final LatencyWindow queueWaits = new LatencyWindow(1024);
+
+    /**
+     * @param settings   the seeding and stopping rules, copied for every worker.
+     * @param port       the HTTP port, 0 for any free port.
+     * @param workers    the number of segmenting threads.
+     * @param maxPending the number of requests queued or running, past which the
+     *                   new ones are rejected.
+     */
+    public SegmentationServer (KMeans settings, int port, int workers, int maxPending) {
+        if (workers < 1) throw new IllegalArgumentException("workers should be at least 1");
+        if (maxPending < workers) throw new IllegalArgumentException("maxPending should be at least workers");
+        this.settings = settings.copy();
+        this.port = port;
+        this.workers = workers;
+        this.maxPending = maxPending;
+        this.admission = new Semaphore(maxPending);
+    }
+
+    public static void main (String[] args) throws IOException {
+        KMeans kMeans = new KMeans();
+        int port = 8080;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int maxPending = -1;
+        long maxPixels = 1 << 24;
+        int batchSize = 8;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            try {
+                switch (name) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--workers":
+                        workers = Integer.parseInt(value);
+                        break;
+                    case "--max-pending":
+                        maxPending = Integer.parseInt(value);
+                        break;
+                    case "--max-pixels":
+                        maxPixels = Long.parseLong(value);
+                        break;
+                    case "--batch-size":
+                        batchSize = Integer.parseInt(value);
+                        break;
+                    default:
+                        if (!arg.startsWith("--")) throw new IllegalArgumentException("unknown argument");
+                        KMeans.parseOption(kMeans, arg);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid option [" + arg + "]! " + e.getMessage());
+                System.out.println(USAGE);
+                System.exit(-1);
+            }
+        }
+        kMeans.setVerbose(false);
+        try {
+            SegmentationServer server = new SegmentationServer(kMeans, port, workers,
+                    maxPending < 0 ? 4 * workers : maxPending);
+            server.setMaxPixels(maxPixels);
+            server.setBatchSize(batchSize);
+            server.start();
+            System.out.printf("Serving on port %d with %d workers.%n", server.getPort(), workers);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Err! " + e.getMessage());
+            System.out.println(USAGE);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Sets the most pixels of an image, past which it is rejected before being
+     * decoded; every admitted image takes 4 bytes per pixel or more.
+     */
+    public void setMaxPixels (long maxPixels) {
+        if (maxPixels < 1) throw new IllegalArgumentException("maxPixels should be at least 1");
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * Sets the most small images a worker takes from the queue at a time.
+     */
+    public void setBatchSize (int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize should be at least 1");
+        this.batchSize = batchSize;
+    }
+
+    public synchronized void start () throws IOException {
+        if (server != null) throw new IllegalStateException("The server is already started");
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        httpThreads = Executors.newFixedThreadPool(Math.max(2, workers / 2), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "segmentation-http-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(httpThreads);
+        server.createContext("/kmeans", new Admission(Job.KMEANS));
+        server.createContext("/regions", new Admission(Job.REGIONS));
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle (HttpExchange exchange) throws IOException {
+                send(exchange, 200, "text/plain; version=0.0.4", metrics().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        for (int i = 0; i < workers; i++) {
+            final Scratch[] scratch = new Scratch[batchSize];
+            for (int j = 0; j < scratch.length; j++)
+                scratch[j] = new Scratch(settings);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run () {
+                    work(scratch);
+                }
+            }, "segmentation-worker-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+            workerThreads.add(thread);
+        }
+        server.start();
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public synchronized int getPort () {
+        if (server == null) throw new IllegalStateException("The server is not started");
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server: the queued requests are answered 503, the running ones
+     * are left to finish.
+     */
+    public synchronized void stop () {
+        if (server == null) return;
+        server.stop(0);
+        for (Thread thread : workerThreads)
+            thread.interrupt();
+        workerThreads.clear();
+        List<Job> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Job job : left)
+            reject(job.exchange, "Stopped");
+        httpThreads.shutdown();
+        server = null;
+    }
+
+    /*
+     * Admits a request, reads and decodes its image on the HTTP thread, and
+     * queues it for the workers.
+     */
+    private final class Admission implements HttpHandler {
+        private final int kind;
+
+        Admission (int kind) {
+            this.kind = kind;
+        }
+
+        @Override
+        public void handle (HttpExchange exchange) throws IOException {
+            long received = System.nanoTime();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "POST an image");
+                return;
+            }
+            if (!admission.tryAcquire()) {
+                rejected.incrementAndGet();
+                reject(exchange, "Too many pending requests");
+                return;
+            }
+            boolean queued = false;
+            try {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    sendError(exchange, 413, "The image is larger than " + MAX_BODY + " bytes");
+                    return;
+                }
+                BufferedImage image = decode(exchange, body);
+                if (image == null) return;
+                queue.add(new Job(kind, exchange, params, image, received));
+                queued = true;
+            } catch (IOException e) {
+                sendError(exchange, 400, "Unreadable image: " + e.getMessage());
+            } finally {
+                if (!queued) admission.release();
+            }
+        }
+    }
+
+    /*
+     * Decodes the image once its header tells its size is acceptable. Answers
+     * the request and returns null if it is not.
+     */
+    private BufferedImage decode (HttpExchange exchange, byte[] body) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(body));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            sendError(exchange, 400, "Not an image");
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+            if (pixels > maxPixels) {
+                sendError(exchange, 413, "The image has " + pixels + " pixels, more than " + maxPixels);
+                return null;
+            }
+            return reader.read(0);
+        } finally {
+            reader.dispose();
+            input.close();
+        }
+    }
+
+    /*
+     * The loop of a worker: takes a request, with the small ones queued right
+     * after it when it is small itself, and answers them, whatever happens on
+     * the way, so that the queued requests are always answered. An Error which
+     * is not handled stops the server, and the worker, once its batch is answered.
+     */
+    private void work (final Scratch[] scratch) {
+        final List<Job> batch = new ArrayList<>(scratch.length);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (batch.get(0).isSmall()) {
+                    for (Job next; batch.size() < scratch.length && (next = queue.peek()) != null && next.isSmall(); ) {
+                        // another worker may have taken it meanwhile, or put a large one first
+                        next = queue.poll();
+                        if (next == null) break;
+                        batch.add(next);
+                        if (!next.isSmall()) break;
+                    }
+                }
+                if (batch.size() == 1) answer(batch.get(0), scratch[0]);
+                else {
+                    batches.incrementAndGet();
+                    batchedImages.addAndGet(batch.size());
+                    answerAll(batch, scratch);
+                }
+                batch.clear();
+            }
+        } catch (Error e) {
+            System.err.println("Err! " + e + ", the server stops");
+            stop();
+            throw e;
+        }
+    }
+
+    /*
+     * Answers the jobs of a batch side by side in the fork/join pool, each with
+     * the scratch of its rank.
+     */
+    private void answerAll (List<Job> batch, Scratch[] scratch) {
+        List<Callable<Void>> answers = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            final Job job = batch.get(i);
+            final Scratch jobScratch = scratch[i];
+            answers.add(new Callable<Void>() {
+                @Override
+                public Void call () {
+                    answer(job, jobScratch);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(answers)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                // the batch is answered, the worker stops at the next job
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // answer() only lets the Errors it doesn't handle out
+                throw (Error) e.getCause();
+            }
+        }
+    }
+
+    private void answer (Job job, Scratch scratch) {
+        running.incrementAndGet();
+        try {
+            queueWaits.add(System.nanoTime() - job.received);
+            if (job.kind == Job.KMEANS) answerKMeans(job, scratch.kMeans);
+            else answerRegions(job, scratch);
+            served.incrementAndGet();
+        } catch (IllegalArgumentException e) {
+            failed.incrementAndGet();
+            sendError(job.exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            fail(job, e);
+        } catch (OutOfMemoryError e) {
+            // only this request fails, and the buffers it grew are dropped
+            scratch.clear();
+            fail(job, e);
+        } catch (Error e) {
+            fail(job, e);
+            throw e;
+        } finally {
+            running.decrementAndGet();
+            admission.release();
+            latencies.add(System.nanoTime() - job.received);
+        }
+    }
+
+    /*
+     * Logs the failure and answers 500, keeping its details from the client.
+     */
+    private void fail (Job job, Throwable e) {
+        failed.incrementAndGet();
+        System.err.println("Err! " + e + " while answering " + job.exchange.getRequestURI());
+        sendError(job.exchange, 500, "Internal error");
+    }
+
+    private void answerKMeans (Job job, KMeans kMeans) throws IOException {
+        String k = job.params.get("k");
+        if (k == null) throw new IllegalArgumentException("k (the cluster count, 1-255) is missing");
+        int clusterCount = Integer.parseInt(k);
+        if (clusterCount < 1 || clusterCount > 255)
+            throw new IllegalArgumentException("k should be in the interval 1-255");
+        int mode = mode(job.params.containsKey("mode") ? job.params.get("mode") : "i");
+        kMeans.setIndexedOutput(Boolean.parseBoolean(job.params.get("indexed")));
+        BufferedImage result = kMeans.calculate(job.image, clusterCount, mode);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        if (IndexedPngWriter.canWrite(result)) IndexedPngWriter.write(result, png);
+        else ImageIO.write(result, "png", png);
+        send(job.exchange, 200, "image/png", png.toByteArray());
+    }
+
+    private void answerRegions (Job job, Scratch scratch) throws IOException {
+        int threshold = threshold(job.params.containsKey("threshold") ? job.params.get("threshold") : "fuzziness");
+        PlanarImage image = PlanarImage.wrapRenderedImage(job.image);
+        if (scratch.regions == null) scratch.regions = new SimpleRegionGrowing(image, threshold);
+        else scratch.regions.setInput(image, threshold);
+        SimpleRegionGrowing regions = scratch.regions;
+        regions.run();
+        if (job.params.containsKey("minArea")) regions.removeSmallRegions(Integer.parseInt(job.params.get("minArea")));
+        if ("png".equals(job.params.get("format"))) {
+            if (regions.getNumberOfRegions() > 0xFFFF)
+                throw new IllegalArgumentException("Too many regions for a 16 bit PNG, ask for format=json");
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(regions.getOutput(), "png", png);
+            send(job.exchange, 200, "image/png", png.toByteArray());
+            return;
+        }
+        RegionStatistics statistics = regions.getStatistics();
+        StringBuilder json = new StringBuilder("{\"regions\":[");
+        boolean first = true;
+        for (int region = 1; region <= regions.getNumberOfRegions(); region++) {
+            int area = statistics.getArea(region);
+            if (area == 0) continue;
+            Rectangle bounds = statistics.getBounds(region);
+            if (!first) json.append(',');
+            first = false;
+            json.append(String.format(Locale.ROOT,
+                    "{\"label\":%d,\"value\":%d,\"area\":%d,\"x\":%d,\"y\":%d,\"width\":%d,\"height\":%d," +
+                            "\"centroidX\":%.2f,\"centroidY\":%.2f}",
+                    region, statistics.getValue(region), area, bounds.x, bounds.y, bounds.width, bounds.height,
+                    statistics.getCentroidX(region), statistics.getCentroidY(region)));
+        }
+        json.append("]}");
+        send(job.exchange, 200, "application/json", json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int mode (String name) {
+        switch (name) {
+            case "i":
+                return KMeans.MODE_ITERATIVE;
+            case "c":
+                return KMeans.MODE_CONTINUOUS;
+            case "p":
+                return KMeans.MODE_PARALLEL;
+            case "h":
+                return KMeans.MODE_HISTOGRAM;
+            case "a":
+                return KMeans.MODE_ACCELERATED;
+            case "r":
+                return KMeans.MODE_PYRAMID;
+            default:
+                throw new IllegalArgumentException("Unknown mode '" + name + "', expected i, c, p, h, a or r");
+        }
+    }
+
+    private static int threshold (String name) {
+        switch (name) {
+            case "fuzziness":
+                return Binarizer.FUZZINESS;
+            case "otsu":
+                return Binarizer.OTSU;
+            case "none":
+                return 0;
+            default:
+                throw new IllegalArgumentException("Unknown threshold '" + name + "', expected fuzziness, otsu or none");
+        }
+    }
+
+    /**
+     * @return the metrics, in the Prometheus text format.
+     */
+    String metrics () {
+        StringBuilder text = new StringBuilder();
+        metric(text, "segmentation_queue_depth", "gauge", "Requests waiting for a worker", queue.size());
+        metric(text, "segmentation_running", "gauge", "Requests being segmented", running.get());
+        metric(text, "segmentation_pending_limit", "gauge", "Requests queued or running before rejecting",
+                maxPending);
+        metric(text, "segmentation_served_total", "counter", "Requests answered with a result", served.get());
+        metric(text, "segmentation_failed_total", "counter", "Requests which failed", failed.get());
+        metric(text, "segmentation_rejected_total", "counter", "Requests rejected as too many", rejected.get());
+        metric(text, "segmentation_batch_size_limit", "gauge", "Small images taken at a time by a worker",
+                batchSize);
+        metric(text, "segmentation_batches_total", "counter", "Batches of small images", batches.get());
+        metric(text, "segmentation_batched_images_total", "counter", "Small images taken in batches",
+                batchedImages.get());
+        latencies.print(text, "segmentation_latency_seconds", "Time from the request to the answer");
+        queueWaits.print(text, "segmentation_queue_wait_seconds", "Time from the request to a worker");
+        return text.toString();
+    }
+
+    private static void metric (StringBuilder text, String name, String type, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static Map<String, String> parseQuery (String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            params.put(name, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /*
+     * The whole body, or null if it is larger than MAX_BODY.
+     */
+    private static byte[] readBody (InputStream input) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        for (int n; (n = input.read(buffer)) > 0; ) {
+            if (body.size() + n > MAX_BODY) return null;
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static void reject (HttpExchange exchange, String message) {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendError(exchange, 503, message);
+    }
+
+    private static void sendError (HttpExchange exchange, int status, String message) {
+        try {
+            send(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // the client is gone, there is no one left to tell
+            exchange.close();
+        }
+    }
+
+    private static void send (HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(body);
+            output.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * An admitted request, with its decoded image.
+     */
+    private static final class Job {
+        static final int KMEANS = 1;
+        static final int REGIONS = 2;
+
+        final int kind;
+        final HttpExchange exchange;
+        final Map<String, String> params;
+        final BufferedImage image;
+        final long received;
+
+        Job (int kind, HttpExchange exchange, Map<String, String> params, BufferedImage image, long received) {
+            this.kind = kind;
+            this.exchange = exchange;
+            this.params = params;
+            this.image = image;
+            this.received = received;
+        }
+
+        boolean isSmall () {
+            return (long) image.getWidth() * image.getHeight() <= SMALL_PIXELS;
+        }
+    }
+
+    /**
+     * What a worker keeps from one image to the next, for an image of its batches:
+     * a KMeans and a SimpleRegionGrowing with their buffers.
+     */
+    private static final class Scratch {
+        final KMeans kMeans;
+        SimpleRegionGrowing regions;
+
+        Scratch (KMeans settings) {
+            kMeans = settings.copy();
+            kMeans.setVerbose(false);
+            kMeans.setReuseBuffers(true);
+        }
+
+        // Drops the buffers
+        void clear () {
+            kMeans.setReuseBuffers(false);
+            kMeans.setReuseBuffers(true);
+            regions = null;
+        }
+    }
+
+    /**
+     * The last durations recorded, with their quantiles.
+     */
+    private static final class LatencyWindow {
+        private final long[] nanos;
+        private int count;
+        private long total;
+        private long sum;
+
+        LatencyWindow (int size) {
+            nanos = new long[size];
+        }
+
+        synchronized void add (long duration) {
+            nanos[count++ % nanos.length] = duration;
+            if (count == 2 * nanos.length) count = nanos.length;
+            total++;
+            sum += duration;
+        }
+
+        void print (StringBuilder text, String name, String help) {
+            long[] window;
+            long total, sum;
+            synchronized (this) {
+                window = Arrays.copyOf(nanos, Math.min(count, nanos.length));
+                total = this.total;
+                sum = this.sum;
+            }
+            Arrays.sort(window);
+            text.append("# HELP ").append(name).append(' ').append(help)
+                    .append(", over the last ").append(nanos.length).append(" requests\n");
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+                double value = window.length == 0 ? Double.NaN
+                        : window[(int) Math.min(window.length - 1, Math.floor(quantile * window.length))] / 1e9;
+                text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+            }
+            text.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.6f", sum / 1e9)).append('\n');
+            text.append(name).append("_count ").append(total).append('\n');
+        }
+    }
+}
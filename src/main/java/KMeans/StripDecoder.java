@@ -0,0 +1,251 @@
+package KMeans;
+
+import org.w3c.dom.NodeList;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.*;
+
+/**
+ * Decodes a non-tiled image once, from the top down, and hands it over as
+ * full-width strips of packed RGB pixels (see {@link PixelBuffer}).
+ * PNG (not interlaced) and JPEG (not progressive) images are decoded in a single read, into a
+ * destination image as high as the image whose Raster only holds the rows of
+ * the current strip: once the reader writes past them the strip is handed over
+ * and its rows are reused for the next one. Other formats are read strip by
+ * strip through source regions.
+ * The decode runs on the executor it is started on, at most one strip ahead
+ * of the caller, or none without read-ahead.
+ */
+class StripDecoder implements Runnable {
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private final int stripHeight;
+    // The strips in order, then the Throwable that stopped the decode if any
+    private final BlockingQueue<Object> strips;
+    private Future<?> task;
+    private volatile boolean cancelled;
+    private IOException failure;
+
+    StripDecoder (ImageReader reader, int stripHeight, boolean readAhead) throws IOException {
+        this.reader = reader;
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        this.stripHeight = stripHeight;
+        strips = readAhead ? new ArrayBlockingQueue<Object>(1) : new SynchronousQueue<Object>();
+    }
+
+    void start (ExecutorService executor) {
+        task = executor.submit(this);
+    }
+
+    /**
+     * Stops the decode; its reader may be used again once the executor is done with it.
+     */
+    void cancel () {
+        cancelled = true;
+        if (task != null) task.cancel(true);
+    }
+
+    /**
+     * Waits for the next strip, stripHeight rows (fewer for the last one) of packed RGB pixels.
+     */
+    int[] next () throws IOException {
+        if (failure != null) throw failure;
+        Object strip;
+        try {
+            strip = strips.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding", e);
+        }
+        if (strip instanceof int[]) return (int[]) strip;
+        failure = strip instanceof IOException ? (IOException) strip : new IOException((Throwable) strip);
+        throw failure;
+    }
+
+    @Override
+    public void run () {
+        try {
+            ImageTypeSpecifier type = streamingType();
+            if (type != null) stream(type);
+            else readRegions();
+        } catch (Throwable e) {
+            // a cancelled decode ends with whatever the interrupt broke, and nobody waits for it
+            if (!cancelled) {
+                try {
+                    strips.put(e);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    private void stream (ImageTypeSpecifier type) throws IOException {
+        StripRaster raster = new StripRaster(type.getSampleModel(width, stripHeight), type.getColorModel(),
+                new Rectangle(0, 0, width, height));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(new BufferedImage(type.getColorModel(), raster,
+                type.getColorModel().isAlphaPremultiplied(), null));
+        reader.read(0, param);
+        // the rows the reader left are handed over as they are
+        while (raster.stripY < height)
+            raster.handOver();
+    }
+
+    private void readRegions () throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int y = 0; y < height; y += stripHeight) {
+            param.setSourceRegion(new Rectangle(0, y, width, Math.min(stripHeight, height - y)));
+            hand(PixelBuffer.read(reader.read(0, param)));
+        }
+    }
+
+    private void hand (int[] strip) {
+        try {
+            strips.put(strip);
+        } catch (InterruptedException e) {
+            throw new CancellationException("Decode cancelled");
+        }
+    }
+
+    /**
+     * @return the destination type for a single read, or null if the image
+     * can't be decoded that way.
+     */
+    private ImageTypeSpecifier streamingType () throws IOException {
+        String format = reader.getFormatName().toLowerCase();
+        // interlaced PNGs and progressive JPEGs come in passes over the whole image
+        if (format.equals("png")) {
+            if (!"none".equals(headerAttribute("IHDR", "interlaceMethod"))) return null;
+        } else if (format.equals("jpeg")) {
+            String process = headerAttribute("sof", "process");
+            if (!"0".equals(process) && !"1".equals(process)) return null;
+        } else {
+            return null;
+        }
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (!types.hasNext()) return null;
+        ImageTypeSpecifier type = types.next();
+        int dataType = type.getSampleModel().getDataType();
+        if (dataType != DataBuffer.TYPE_BYTE && dataType != DataBuffer.TYPE_USHORT && dataType != DataBuffer.TYPE_INT)
+            return null;
+        return type;
+    }
+
+    // An attribute of a node of the native image metadata, or null
+    private String headerAttribute (String node, String attribute) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || metadata.getNativeMetadataFormatName() == null) return null;
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(metadata.getNativeMetadataFormatName());
+        NodeList nodes = root.getElementsByTagName(node);
+        if (nodes.getLength() == 0) return null;
+        return ((IIOMetadataNode) nodes.item(0)).getAttribute(attribute);
+    }
+
+    /**
+     * The Raster of the whole image, backed by the rows of one strip: its
+     * SampleModel and DataBuffer are the ones of a strip, and row y of the image
+     * is row y - stripY of the strip, so the indices never go past the strip.
+     * Rows above it are gone, writes below it hand it over. The readers write
+     * through the set methods, a row or a pixel at a time.
+     */
+    private final class StripRaster extends WritableRaster {
+        private final ColorModel colorModel;
+        private int stripY;
+
+        StripRaster (SampleModel stripModel, ColorModel colorModel, Rectangle bounds) {
+            super(stripModel, stripModel.createDataBuffer(), bounds, new Point(0, 0), null);
+            this.colorModel = colorModel;
+        }
+
+        // Moves the strip down to row y, and tells whether the h rows from y are all in it
+        private boolean toStrip (int y, int h) {
+            if (y < stripY) throw new IllegalStateException("Row " + y + " written after its strip");
+            while (y >= stripY + stripHeight)
+                handOver();
+            return y + h <= stripY + stripHeight;
+        }
+
+        void handOver () {
+            if (cancelled || Thread.currentThread().isInterrupted())
+                throw new CancellationException("Decode cancelled");
+            int rows = Math.min(stripHeight, height - stripY);
+            WritableRaster strip = Raster.createWritableRaster(
+                    sampleModel.createCompatibleSampleModel(width, rows), dataBuffer, null);
+            hand(PixelBuffer.read(new BufferedImage(colorModel, strip, colorModel.isAlphaPremultiplied(), null)));
+            stripY += stripHeight;
+            sampleModelTranslateY = stripY;
+        }
+
+        @Override
+        public void setDataElements (int x, int y, Object inData) {
+            toStrip(y, 1);
+            super.setDataElements(x, y, inData);
+        }
+
+        @Override
+        public void setDataElements (int x, int y, int w, int h, Object inData) {
+            if (toStrip(y, h)) {
+                super.setDataElements(x, y, w, h, inData);
+                return;
+            }
+            // across two strips, a row at a time
+            int length = w * getNumDataElements();
+            Object row = java.lang.reflect.Array.newInstance(inData.getClass().getComponentType(), length);
+            for (int i = 0; i < h; i++) {
+                System.arraycopy(inData, i * length, row, 0, length);
+                setDataElements(x, y + i, w, 1, row);
+            }
+        }
+
+        @Override
+        public void setPixel (int x, int y, int[] iArray) {
+            toStrip(y, 1);
+            super.setPixel(x, y, iArray);
+        }
+
+        @Override
+        public void setPixels (int x, int y, int w, int h, int[] iArray) {
+            if (toStrip(y, h)) {
+                super.setPixels(x, y, w, h, iArray);
+                return;
+            }
+            int length = w * getNumBands();
+            for (int i = 0; i < h; i++)
+                setPixels(x, y + i, w, 1, Arrays.copyOfRange(iArray, i * length, (i + 1) * length));
+        }
+
+        @Override
+        public void setSample (int x, int y, int b, int s) {
+            toStrip(y, 1);
+            super.setSample(x, y, b, s);
+        }
+
+        @Override
+        public void setSamples (int x, int y, int w, int h, int b, int[] iArray) {
+            if (toStrip(y, h)) {
+                super.setSamples(x, y, w, h, b, iArray);
+                return;
+            }
+            for (int i = 0; i < h; i++)
+                setSamples(x, y + i, w, 1, b, Arrays.copyOfRange(iArray, i * w, (i + 1) * w));
+        }
+
+        @Override
+        public WritableRaster createWritableChild (int parentX, int parentY, int w, int h,
+                                                   int childMinX, int childMinY, int[] bandList) {
+            // a child would keep the rows of the current strip
+            throw new UnsupportedOperationException("A strip can't be split");
+        }
+    }
+}
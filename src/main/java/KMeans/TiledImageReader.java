@@ -0,0 +1,172 @@
+package KMeans;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Reads an image tile by tile, so the full raster is never held in memory.
+ * Tiles come back as packed RGB arrays (see {@link PixelBuffer}).
+ * Tiled images (e.g. TIFF) are read tile by tile through ImageReader source
+ * regions. Other images can only be decoded from the top, so they are decoded
+ * once by a {@link StripDecoder} into full-width strips one tile high, and the
+ * tiles are cut from the strips; reading the rows of tiles in order decodes
+ * the image once, going back to an earlier row decodes it again from the top.
+ * While the caller works on a tile (or strip), the next one in row-major
+ * order is decoded ahead on a background thread; every decode runs on that
+ * thread, since ImageReaders are not thread-safe.
+ */
+public class TiledImageReader implements Closeable {
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final boolean tiled;
+    private final ExecutorService decoder;
+    private boolean readAhead = true;
+    // The tile being decoded ahead, and its index in row-major order
+    private Future<int[]> next;
+    private int nextIndex = -1;
+    // The decode of a non-tiled image, and its current strip (row of tiles)
+    private StripDecoder strips;
+    private int[] strip;
+    private int stripY = -1;
+
+    public TiledImageReader (ImageReader reader, int tileWidth, int tileHeight) throws IOException {
+        if (tileWidth < 1 || tileHeight < 1) throw new IllegalArgumentException("Tiles should be at least 1x1");
+        this.reader = reader;
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        this.tileWidth = Math.min(tileWidth, width);
+        this.tileHeight = Math.min(tileHeight, height);
+        tiled = reader.isImageTiled(0);
+        decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "tile-decoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Enables or disables decoding the next tile, or strip, ahead (enabled by
+     * default). It applies from the next decode from the top of a non-tiled image.
+     */
+    public void setReadAhead (boolean readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    public int getWidth () {
+        return width;
+    }
+
+    public int getHeight () {
+        return height;
+    }
+
+    public int getTileWidth () {
+        return tileWidth;
+    }
+
+    public int getTileHeight () {
+        return tileHeight;
+    }
+
+    public int getNumXTiles () {
+        return (width + tileWidth - 1) / tileWidth;
+    }
+
+    public int getNumYTiles () {
+        return (height + tileHeight - 1) / tileHeight;
+    }
+
+    /**
+     * The area of the image covered by a tile; tiles on the right and bottom
+     * edges may be smaller than the others.
+     */
+    public Rectangle getTileBounds (int tileX, int tileY) {
+        int x = tileX * tileWidth;
+        int y = tileY * tileHeight;
+        return new Rectangle(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y));
+    }
+
+    /**
+     * Reads a tile, as a packed RGB array of getTileBounds(tileX, tileY).
+     */
+    public synchronized int[] readTile (int tileX, int tileY) throws IOException {
+        if (!tiled) return cutTile(tileX, tileY);
+        int index = tileY * getNumXTiles() + tileX;
+        Future<int[]> tile = index == nextIndex ? next : decode(index);
+        next = null;
+        nextIndex = -1;
+        if (readAhead && index + 1 < getNumXTiles() * getNumYTiles()) {
+            nextIndex = index + 1;
+            next = decode(nextIndex);
+        }
+        try {
+            return tile.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading tile (" + tileX + ", " + tileY + ")", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private int[] cutTile (int tileX, int tileY) throws IOException {
+        if (tileY < 0 || tileY >= getNumYTiles()) throw new IndexOutOfBoundsException("Tile row " + tileY);
+        if (strips == null || tileY < stripY) {
+            // decode again from the top
+            if (strips != null) strips.cancel();
+            strips = new StripDecoder(reader, tileHeight, readAhead);
+            strips.start(decoder);
+            stripY = -1;
+        }
+        while (stripY < tileY) {
+            strip = strips.next();
+            stripY++;
+        }
+        Rectangle bounds = getTileBounds(tileX, tileY);
+        int[] tile = new int[bounds.width * bounds.height];
+        for (int row = 0; row < bounds.height; row++)
+            System.arraycopy(strip, row * width + bounds.x, tile, row * bounds.width, bounds.width);
+        return tile;
+    }
+
+    private Future<int[]> decode (final int index) {
+        final Rectangle bounds = getTileBounds(index % getNumXTiles(), index / getNumXTiles());
+        return decoder.submit(new Callable<int[]>() {
+            @Override
+            public int[] call () throws IOException {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(bounds);
+                return PixelBuffer.read(reader.read(0, param));
+            }
+        });
+    }
+
+    /**
+     * Stops the decoder and closes the underlying reader and stream.
+     */
+    @Override
+    public synchronized void close () throws IOException {
+        if (strips != null) strips.cancel();
+        decoder.shutdownNow();
+        try {
+            decoder.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Object input = reader.getInput();
+        reader.dispose();
+        if (input instanceof ImageInputStream) ((ImageInputStream) input).close();
+    }
+}
@@ -1,12 +1,16 @@
 package KMeans;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Iterator;
 
 /**
  * [7/29/15:15:57]
@@ -31,9 +35,55 @@ public class Utils {
         }
     }
 
-    public static void saveImage (BufferedImage image, String target) {
+    /**
+     * Opens an image without decoding it, so that it can be read region by region.
+     * The caller should dispose() the reader and close its input when done.
+     */
+    public static ImageReader openImage (String path) throws IOException {
+        File img = new File(path);
+        Path imgpath = img.toPath();
+
+        if (!Files.exists(imgpath))
+            throw new FileNotFoundException("Err! file [" + imgpath + "] not found!");
+        else if (!Files.isReadable(imgpath))
+            throw new IOException("Err! Can't read file [" + imgpath + "]!");
+
+        ImageInputStream input = ImageIO.createImageInputStream(img);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("Err! No reader for image '" + imgpath + "'.");
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, true);
+        return reader;
+    }
+
+    /**
+     * Opens an image to be read tile by tile, decoding the next tile ahead.
+     * Close the returned reader when done.
+     */
+    public static TiledImageReader openTiled (String path, int tileWidth, int tileHeight) throws IOException {
+        ImageReader reader = openImage(path);
+        try {
+            return new TiledImageReader(reader, tileWidth, tileHeight);
+        } catch (IOException | RuntimeException e) {
+            ((ImageInputStream) reader.getInput()).close();
+            reader.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Saves the image as PNG. The writer reads the image row by row, so a
+     * {@link BandedImage} is encoded as its bands are computed, without ever
+     * holding the full raster. An indexed image is written straight from its
+     * byte raster by {@link IndexedPngWriter}.
+     */
+    public static void saveImage (RenderedImage image, String target) {
         try {
-            ImageIO.write(image, "png", new File(target));
+            if (IndexedPngWriter.canWrite(image)) IndexedPngWriter.write((BufferedImage) image, new File(target));
+            else ImageIO.write(image, "png", new File(target));
         } catch (NullPointerException e) {
             System.err.println("Err! Could not initiate the output file\nExiting");
             System.exit(-1);